@@ -14,7 +14,11 @@ import org.lwjgl.system.MemoryUtil;
 import cd4017be.dfc.editor.circuit.CircuitEditor;
 import cd4017be.dfc.editor.gui.GuiGroup;
 import cd4017be.dfc.graphics.IconAtlas;
+import cd4017be.dfc.lang.InterpreterPool;
 import cd4017be.dfc.lang.LoadingCache;
+import cd4017be.dfc.lang.Module;
+import cd4017be.dfc.lang.builders.Function;
+import cd4017be.dfc.lang.builders.Function.Compiled;
 import cd4017be.util.TraceAtlas;
 
 /**
@@ -91,10 +95,13 @@ public class Main {
 		} catch(MalformedURLException e) {
 			throw new RuntimeException(e);
 		}
-		new CircuitEditor(GUI).open(
-			LoadingCache.getModule(args[1].replace('\\', '/'))
-			.getBlock(args.length > 2 ? args[2].replace('\\', '/') : "")
-		);
+		Module module = LoadingCache.getModule(args[1].replace('\\', '/'));
+		new CircuitEditor(GUI).open(module.getBlock(args.length > 2 ? args[2].replace('\\', '/') : ""));
+		//compile the module's functions in the background, so running circuits doesn't wait for that later
+		InterpreterPool.daemonThreads("precompile-").newThread(() -> {
+			for (Compiled c : Function.precompile(module))
+				if (c.error() != null) c.log();
+		}).start();
 		int[] w = new int[1], h = new int[1];
 		glfwGetFramebufferSize(window, w, h);
 		GUI.onResize(window, w[0], h[0]);
@@ -10,6 +10,7 @@ import java.util.Arrays;
 import org.lwjgl.system.MemoryStack;
 import cd4017be.dfc.graphics.SpriteModel;
 import cd4017be.dfc.lang.*;
+import cd4017be.dfc.lang.instructions.ConstantIns;
 import modules.dfc.module.Intrinsics;
 
 /**Represents an operand block.
@@ -226,7 +227,11 @@ public class Block extends BlockDesc implements CircuitObject {
 		else if ((node = inNode(pin - outs())) == null)
 			return Intrinsics.NULL;
 		int addr = node == null ? 0 : node.addr(0);
-		return addr <= 0 || addr >= state.length ? null : state[addr];
+		if (addr > 0 && addr < state.length) return state[addr];
+		//results reused from a previous run may not be needed anymore
+		while(node != null && node.mode == Node.PASS && node.in.length == 1)
+			node = node.in[0].from();
+		return node != null && node.op instanceof ConstantIns c ? c.value() : null;
 	}
 
 }
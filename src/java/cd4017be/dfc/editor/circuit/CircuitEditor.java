@@ -2,6 +2,7 @@ package cd4017be.dfc.editor.circuit;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import cd4017be.dfc.editor.Main;
 import cd4017be.dfc.editor.circuit.BlockList.BlockConsumer;
@@ -26,6 +27,10 @@ import static org.lwjgl.opengl.GL20C.*;
  * @author CD4017BE */
 public class CircuitEditor extends GuiGroup implements BlockConsumer {
 
+	/** time in ms to wait after an edit before evaluating the circuit again, so rapid edits are coalesced */
+	private static final long EDIT_DELAY = Long.getLong("dfc.editDelay", 150);
+	private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(InterpreterPool.daemonThreads("edit-delay-"));
+
 	/**Editing modes */
 	private static final byte M_IDLE = 0, M_BLOCK_SEL = 1, M_TRACE_SEL = 2, M_TRACE_MV = 3, M_TRACE_DRAW = 4,
 	M_MULTI_SEL = 5, M_MULTI_MOVE = 6, M_BLOCK_SCALE = 7;
@@ -39,7 +44,7 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 	final VertexArray blockVAO, traceVAO;
 	final TextField text;
 	final ArrayList<String> autoComplete = new ArrayList<>();
-	final Interpreter ip;
+	final InterpreterPool ip;
 	/** mouse grid offset and zoom */
 	int ofsX, ofsY, dSize;
 	boolean panning = false;
@@ -53,7 +58,9 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 	int editArg;
 	boolean textModified, reRunTypecheck;
 	NodeContext context;
-	Task result;
+	/** the last completed and the last submitted evaluation */
+	Task result, running;
+	private ScheduledFuture<?> pendingCheck;
 
 	public CircuitEditor(GuiGroup parent) {
 		super(parent, 4);
@@ -64,7 +71,7 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 		this.traceVAO = genTraceVAO(64);
 		this.blocks = new IndexedSet<>(new Block[64]);
 		this.traces = new IndexedSet<>(new Trace[64]);
-		this.ip = new Interpreter();
+		this.ip = new InterpreterPool();
 		this.text = new TextField(this).color(FG_YELLOW_L).action(this::setText).model(null);
 		
 		glUseProgram(traceP);
@@ -75,8 +82,9 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 	public void open(BlockDef def) {
 		clear();
 		palette.setModule(def.isModule() ? LOADER : def.module);
-		ip.cancel();
-		result = ip.new Task(def, null, task -> {});
+		if (context != null) ip.cancel(context);
+		result = new Task(def, null, task -> {});
+		running = null;
 		context = new NodeContext(def, true);
 		reRunTypecheck = true;
 		synchronized(def) {
@@ -133,8 +141,9 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 	@Override
 	public void redraw() {
 		if (reRunTypecheck) {
-			context.typeCheck(ip, blocks, task -> Main.runAsync(() -> applyResult(task)));
 			reRunTypecheck = false;
+			if (pendingCheck != null) pendingCheck.cancel(false);
+			pendingCheck = TIMER.schedule(() -> Main.runAsync(this::typeCheck), EDIT_DELAY, TimeUnit.MILLISECONDS);
 		}
 		//draw frame
 		if (!redraw) return;
@@ -193,7 +202,14 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 		drawText(ox, oy + sy, sx * 2F, sy * 2F,         true);
 	}
 
+	private void typeCheck() {
+		//the previous run is outdated now
+		ip.cancel(context);
+		running = context.typeCheck(ip, blocks, task -> Main.runAsync(() -> applyResult(task)));
+	}
+
 	private void applyResult(Task task) {
+		if (task != running) return;
 		result = task;
 		task.log();
 		lastError = task.error;
@@ -620,6 +636,7 @@ public class CircuitEditor extends GuiGroup implements BlockConsumer {
 
 	@Override
 	public void close(long window) {
+		if (pendingCheck != null) pendingCheck.cancel(false);
 		super.close(window);
 		glDeleteBuffers(blockVAO.buffer);
 		glDeleteBuffers(traceVAO.buffer);
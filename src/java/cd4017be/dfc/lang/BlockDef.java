@@ -31,14 +31,14 @@ public class BlockDef {
 	public String name;
 	public Instruction impl;
 	public int vaSize;
-	private boolean defined;
+	private volatile boolean defined;
 
 	BlockDef(Module module, String id) {
 		this.module = module;
 		this.id = id;
 	}
 
-	public BlockDef define(
+	public synchronized BlockDef define(
 		Function<BlockDef, NodeAssembler> assembler, String[] ins, String[] outs,
 		String[] args, ArgumentParser[] parsers, URL model, String name
 	) {
@@ -63,11 +63,14 @@ public class BlockDef {
 		).assembler;
 	}
 
+	/**@return this, after loading its definition from the module if necessary (only once, even if called concurrently) */
 	public BlockDef defined() {
 		if (defined) return this;
-		if (Intrinsics.loadBlock(this)) return this;
-		System.err.printf("missing block definition %s\n", this);
-		return define(Intrinsics.ERROR, EMPTY_IO, EMPTY_IO, EMPTY_IO, EMPTY_ARG, null, "undefined block");
+		synchronized(this) {
+			if (defined || Intrinsics.loadBlock(this)) return this;
+			System.err.printf("missing block definition %s\n", this);
+			return define(Intrinsics.ERROR, EMPTY_IO, EMPTY_IO, EMPTY_IO, EMPTY_ARG, null, "undefined block");
+		}
 	}
 
 	private static int isVar(String[] io) {
@@ -119,6 +119,23 @@ public class CircuitFile {
 		return blocks;
 	}
 
+	/**@param circuit
+	 * @return a copy of the given circuit with new blocks, so it can be built independently of the original */
+	public static IndexedSet<BlockDesc> copyCircuit(IndexedSet<? extends BlockDesc> circuit) {
+		int n = circuit.size();
+		IndexedSet<BlockDesc> blocks = new IndexedSet<>(new BlockDesc[n]);
+		for (BlockDesc block : circuit)
+			blocks.add(new BlockDesc(block.def, block.outs.length, block.inLinks.clone(), block.args));
+		for (int i = 0; i < n; i++) {
+			BlockDesc src = circuit.get(i), dst = blocks.get(i);
+			for (int j = 0; j < dst.ins(); j++) {
+				BlockDesc in = src.inBlocks[j];
+				dst.inBlocks[j] = in == null ? null : blocks.get(in.getIdx());
+			}
+		}
+		return blocks;
+	}
+
 	public static OutputStream output(URL url) throws IOException {
 		try {
 			File file = new File(url.toURI());
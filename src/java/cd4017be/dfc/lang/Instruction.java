@@ -1,13 +1,26 @@
 package cd4017be.dfc.lang;
 
-/**
+/**An operation of compiled code. Instructions are immutable once bound to their frame slots,
+ * so the same code can be evaluated by any number of interpreters concurrently.
  * @author cd4017be */
 public abstract class Instruction {
 
+	/**@param io frame slots: output, scope, inputs...
+	 * @return a new instruction performing this operation on the given frame slots.
+	 * This instruction itself is left unchanged, so it can serve as template for any number of call sites.
+	 * @throws SignalError if the operation can't be bound to these slots */
 	public abstract Instruction setIO(int[] io) throws SignalError;
 
 	public abstract void eval(Interpreter ip, Value[] vars) throws SignalError;
 
+	/**@return a key identifying the operation (including constant parameters) if this instruction is pure,
+	 * meaning its output only depends on its input values (not on the content of input arrays, which may change in place)
+	 * and it has no side effects. Otherwise null.
+	 * Pure instructions may be evaluated at compile time, merged or moved by the {@link Optimizer}. */
+	public Object pureOp() {
+		return null;
+	}
+
 	protected static void checkIO(int[] io, int expLen) throws SignalError {
 		if (io.length != expLen)
 			throw new SignalError(~io[0], "wrong IO count");
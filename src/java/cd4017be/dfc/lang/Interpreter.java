@@ -1,175 +1,362 @@
 package cd4017be.dfc.lang;
 
 import java.io.Closeable;
-import java.io.IOException;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import cd4017be.dfc.lang.instructions.StackEvaluator;
 
-/**
+/**Execution state for evaluating {@link Task}s one after another on the calling thread.
+ * Each worker of an {@link InterpreterPool} owns one of these.
+ * Resources opened by a task belong to the {@link Task#resources task}, so interpreters {@link #fork() forked} for it share them.
+ * <p> A task can be {@link Task#cancel() cancelled} or given a {@link Task#timeout(long) deadline} at any time.
+ * The operation budget is then checked on every tick and the running thread is interrupted to abort blocking I/O.
+ * Intrinsics doing bulk work call {@link #charge(long)} in between chunks, so they stop promptly as well. </p>
+ * <p> Intrinsics and instructions that allocate arrays of variable size {@link #allocate(long, long) charge} them
+ * against the task's {@link Task#memoryLimit(long) memory budget}. As it's not known when they become garbage,
+ * this limits the total amount allocated during the task. </p>
  * @author cd4017be */
-public class Interpreter extends Thread {
+public class Interpreter {
 
-	private final AtomicReference<Task> scheduled = new AtomicReference<>();
-	private volatile long counter;
-	private volatile boolean terminate;
+	/** stops tasks that exceed their deadline */
+	private static final ScheduledThreadPoolExecutor DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r, "interpreter-deadlines");
+		t.setDaemon(true);
+		return t;
+	});
+	static {
+		DEADLINES.setRemoveOnCancelPolicy(true);
+	}
 
-	private Closeable[] resources = new Closeable[64];
-	private int[] ids = new int[64];
-	private long[] free = {-1};
-	private int lastId = 0;
+	/** estimated heap size of an array header and an element reference */
+	private static final int ARRAY = 16, REF = 8;
+	private static final String OUT_OF_MEMORY = "memory budget exceeded";
 
-	public Interpreter() {
-		super("interpreter");
-		setPriority(Math.max(MIN_PRIORITY, currentThread().getPriority() - 1));
-		setDaemon(true);
-		start();
-	}
+	private volatile Task task;
+	private volatile long counter;
+	/** initial counter value of forked interpreters */
+	private long start;
+	/** remaining memory budget in bytes, its initial value and the largest single allocation */
+	private long memory, memStart, largest;
 
-	@Override
-	public void run() {
-		while(!terminate) {
-			synchronized(this) {
-				try {this.wait();} catch(InterruptedException e) {}
-			}
-			Task task = scheduled.get();
-			if (task != null) {
-				counter = task.limit;
-				if (terminate) break;
-				long time = System.nanoTime();
-				if (task.code != null) try {
-					eval(task.code, task.vars, 0);
-					task.error = null;
-				} catch(SignalError e) {
-					e.printStackTrace();
-					task.error = e;
-				}
-				closeAll();
-				task.time = System.nanoTime() - time;
-				task.ticks = task.limit - counter;
-				task.onComplete.accept(task);
-				if (scheduled.compareAndExchange(task, null) != task)
-					interrupt();
-			}
+	private Value[][] frames = new Value[16][];
+	private int depth;
+	/** stack slot limit for {@link StackEvaluator}, 0 for recursive evaluation */
+	private volatile long stackLimit = Long.getLong("dfc.stackLimit", 0);
+
+	/**Evaluate the given task on the current thread and complete it.
+	 * Any exception or error thrown by its code is recorded as the task's {@link Task#error}.
+	 * @param task */
+	public void run(Task task) {
+		this.task = task;
+		task.ip = this;
+		counter = task.limit;
+		memory = memStart = task.memoryLimit > 0 ? task.memoryLimit : Long.MAX_VALUE;
+		largest = 0;
+		depth = 0;
+		long time = System.nanoTime();
+		ScheduledFuture<?> deadline = null;
+		if (task.code != null) try {
+			task.start(Thread.currentThread());
+			if (task.timeout > 0)
+				deadline = DEADLINES.schedule(() -> task.stop("deadline exceeded"), task.timeout, TimeUnit.NANOSECONDS);
+			long sl = stackLimit;
+			if (sl > 0) StackEvaluator.eval(this, task.code, task.vars, sl);
+			else eval(task.code, task.vars, 0);
+			task.error = null;
+		} catch(SignalError e) {
+			e.printStackTrace();
+			task.error = e;
+		} catch(Throwable e) {
+			//the task must still complete, so its callback learns about the failure
+			e.printStackTrace();
+			task.error = new SignalError(-1, null, e);
+		} finally {
+			if (deadline != null) deadline.cancel(false);
+			task.finish();
+			task.resources.closeAll();
+			if (frames.length > 256) frames = Arrays.copyOf(frames, 256);
+			task.time = System.nanoTime() - time;
+			task.ticks = task.limit - counter;
+			task.allocated = memStart - memory;
+			task.largest = largest;
+			this.task = null;
 		}
+		task.complete();
 	}
 
+	/**@return the task currently running or null if idle */
 	public Task task() {
-		//TODO do better
-		return scheduled.get();
+		return task;
 	}
 
 	public boolean active() {
-		return scheduled.get() != null;
+		return task != null;
 	}
 
+	/**Abort the code evaluated by this interpreter (if any).
+	 * Unlike {@link Task#cancel()}, this does not affect other interpreters {@link #fork() forked} for the same task. */
 	public void cancel() {
-		scheduled.set(null);
 		counter = 0;
 	}
 
-	public void schedule(Task task) {
-		if (scheduled.getAndSet(task) == null)
-			interrupt();
+	/**@return a new interpreter for evaluating code concurrently on behalf of the current task,
+	 * with the remaining operation budget. Its operations must be charged back via {@link #join(Interpreter, int)}. */
+	public Interpreter fork() {
+		Interpreter ip = new Interpreter();
+		ip.task = task;
+		ip.counter = ip.start = counter;
+		ip.memory = ip.memStart = memory;
+		return ip;
 	}
 
-	public void terminate() {
-		terminate = true;
-		counter = 0;
-		interrupt();
+	/**Charge the operations and allocations of a forked interpreter against this one.
+	 * @param ip an interpreter returned by {@link #fork()} that finished evaluating
+	 * @param id scope block reported on failure
+	 * @throws SignalError if the task ran out of operations or memory */
+	public void join(Interpreter ip, int id) throws SignalError {
+		largest = Math.max(largest, ip.largest);
+		if ((memory -= ip.memStart - ip.memory) < 0)
+			throw new SignalError(~id, OUT_OF_MEMORY);
+		if ((counter -= ip.start - ip.counter) < 0 || task.stopped != null)
+			throw stopped(id);
+	}
+
+	/**@param slots maximum number of stack slots when evaluating tasks with an explicit stack
+	 * (so recursion depth is not limited by the thread's stack size)
+	 * or 0 to evaluate recursively on the Java stack. */
+	public void setStackLimit(long slots) {
+		this.stackLimit = slots;
 	}
 
 	public void eval(Instruction[] code, Value[] vars, int id) throws SignalError {
-		if ((counter -= code.length) < 0)
-			throw new SignalError(~id, "computation took too long");
+		tick(code.length, id);
 		for (Instruction ins : code) ins.eval(this, vars);
 	}
 
-	public void closeAll() {
-		for (int i = 0; i < free.length; i++) {
-			long f = free[i];
-			if (f == -1) continue;
-			for (int j = i * 64, j1 = j + 64; j < j1; j++) {
-				Closeable r = resources[j];
-				if (r == null) continue;
-				resources[j] = null;
-				try {
-					r.close();
-				} catch(IOException e) {
-					e.printStackTrace();
-				}
-			}
-			free[i] = -1;
-		}
-		lastId = 0;
+	/**Charge the given number of operations against the current task's limit.
+	 * @param n number of operations
+	 * @param id scope block reported on failure
+	 * @throws SignalError if the task ran out of operations */
+	public void tick(int n, int id) throws SignalError {
+		if ((counter -= n) < 0 || task.stopped != null)
+			throw stopped(id);
+	}
+
+	/**Charge bulk work done by an intrinsic against the current task's limit.
+	 * Long running intrinsics should call this regularly, so they can be stopped promptly.
+	 * @param n number of operations
+	 * @throws CancellationException if the task was stopped or ran out of operations,
+	 * reported at the calling intrinsic. */
+	public void charge(long n) {
+		if ((counter -= n) < 0 || task.stopped != null)
+			throw new CancellationException(reason());
+	}
+
+	/**Charge an allocation made by an intrinsic against the current task's memory budget.
+	 * @param elements number of element references allocated
+	 * @param bytes number of data bytes allocated
+	 * @throws IllegalStateException if the budget is exceeded, reported at the calling intrinsic. */
+	public void allocate(long elements, long bytes) {
+		if (alloc(elements, bytes))
+			throw new IllegalStateException(OUT_OF_MEMORY);
+	}
+
+	/**Charge an allocation made by an instruction against the current task's memory budget.
+	 * @param elements number of element references allocated
+	 * @param bytes number of data bytes allocated
+	 * @param id slot of the allocating node reported on failure
+	 * @throws SignalError if the budget is exceeded */
+	public void allocate(long elements, long bytes, int id) throws SignalError {
+		if (alloc(elements, bytes))
+			throw new SignalError(~id, OUT_OF_MEMORY);
+	}
+
+	private boolean alloc(long elements, long bytes) {
+		long n = ARRAY + elements * REF + bytes;
+		if (n > largest) largest = n;
+		return (memory -= n) < 0;
 	}
 
+	private SignalError stopped(int id) {
+		return new SignalError(~id, reason());
+	}
+
+	private String reason() {
+		String s = task.stopped;
+		return s != null ? s : "computation took too long";
+	}
+
+	/**@param size minimum number of slots
+	 * @return an empty frame for the next nested function call,
+	 * which must be released via {@link #pop(Value[], int)} when the call returns. */
+	public Value[] push(int size) {
+		int d = depth++;
+		if (d == frames.length) frames = Arrays.copyOf(frames, d * 2);
+		Value[] frame = frames[d];
+		if (frame == null || frame.length < size)
+			frames[d] = frame = new Value[size];
+		return frame;
+	}
+
+	/**Release the most recently pushed frame and clear its used slots,
+	 * so it doesn't keep dead values from being garbage collected.
+	 * @param frame the frame returned by {@link #push(int)}
+	 * @param size the size it was pushed with */
+	public void pop(Value[] frame, int size) {
+		Arrays.fill(frame, 0, size, null);
+		depth--;
+	}
+
+	/**@param r a resource to be closed when the current task ends
+	 * @return its id in the current task's {@link Task#resources} */
 	public long addResource(Closeable r) {
-		int j; findFreeIdx: {
-			int l = free.length;
-			for (int i = 0; i < l; i++) {
-				long f = free[i];
-				if (f == 0) continue;
-				j = i * 64 + Long.numberOfTrailingZeros(f);
-				break findFreeIdx;
-			}
-			free = Arrays.copyOf(free, l * 2);
-			Arrays.fill(free, l, l * 2, -1L);
-			l *= 64;
-			resources = Arrays.copyOf(resources, l * 2);
-			ids = Arrays.copyOf(ids, l * 2);
-			j = l;
-		}
-		free[j >> 6] ^= 1L << j;
-		resources[j] = r;
-		return j | (long)(ids[j] = ++lastId) << 32;
+		return task.resources.add(r);
 	}
 
 	public Closeable getResource(long id) {
-		int idx = (int)id & ids.length - 1;
-		return ids[idx] == (int)(id >> 32) ? resources[idx] : null;
+		return task.resources.get(id);
 	}
 
 	public Closeable removeResource(long id) {
-		int idx = (int)id & ids.length - 1;
-		if (ids[idx] != (int)(id >> 32))
-			return null;
-		Closeable r = resources[idx];
-		resources[idx] = null;
-		free[idx >> 6] &= ~(1 << idx);
-		return r;
+		return task.resources.remove(id);
 	}
 
-	public class Task {
+	public static class Task {
+		/** priority of tasks the user is waiting for */
+		public static final int INTERACTIVE = 10;
+		/** priority of background tasks */
+		public static final int BATCH = 0;
+
 		private final Consumer<Task> onComplete;
+		private final CompletableFuture<Task> future = new CompletableFuture<>();
 		public final Value[] vars;
 		public final Instruction[] code;
 		public final BlockDef root;
 		public final long limit;
+		/** resources opened by the task, closed when it ends */
+		public final ResourceTable resources = new ResourceTable();
+		/** tasks with higher priority are run first */
+		public final int priority;
+		/** a new task with the same (non null) key supersedes this one if it's still waiting to run */
+		public final Object key;
+		/** wall-clock time limit in ns, 0 for none */
+		public long timeout;
+		/** maximum number of bytes the task may allocate, 0 for no limit */
+		public long memoryLimit;
 		public long time, ticks;
+		/** estimated number of bytes allocated in total and by the largest single allocation */
+		public long allocated, largest;
 		public SignalError error;
+		/** the reason why the task was stopped early or null if it wasn't.
+		 * The position where execution stopped is then reported by {@link #error}. */
+		public volatile String stopped;
+		Interpreter ip;
+		private Thread thread;
+		private boolean finished;
 
 		public Task(BlockDef root, Instruction[] code, Value[] vars, long limit, Consumer<Task> onComplete) {
+			this(root, code, vars, limit, BATCH, null, onComplete);
+		}
+
+		public Task(
+			BlockDef root, Instruction[] code, Value[] vars, long limit,
+			int priority, Object key, Consumer<Task> onComplete
+		) {
 			this.root = root;
 			this.code = code;
 			this.vars = vars;
 			this.limit = limit;
+			this.priority = priority;
+			this.key = key;
 			this.onComplete = onComplete;
-			schedule(this);
 		}
 
+		/**Create an already completed task.
+		 * @param root
+		 * @param error the reason why it can't run
+		 * @param onComplete called immediately */
 		public Task(BlockDef root, SignalError error, Consumer<Task> onComplete) {
 			this(root, null, null, 0, onComplete);
 			this.error = error;
+			this.finished = true;
+			complete();
+		}
+
+		/**@param ms maximum wall-clock time the task may run, 0 for no limit
+		 * @return this */
+		public Task timeout(long ms) {
+			this.timeout = TimeUnit.MILLISECONDS.toNanos(ms);
+			return this;
+		}
+
+		/**@param bytes maximum number of bytes the task may allocate in total, 0 for no limit
+		 * @return this */
+		public Task memoryLimit(long bytes) {
+			this.memoryLimit = bytes;
+			return this;
+		}
+
+		/**Stop the task as soon as possible, also interrupting blocking I/O.
+		 * Has no effect if it already completed. */
+		public void cancel() {
+			stop("cancelled");
+		}
+
+		synchronized void stop(String reason) {
+			if (finished || stopped != null) return;
+			stopped = reason;
+			if (thread != null) thread.interrupt();
+		}
+
+		synchronized void start(Thread thread) {
+			this.thread = thread;
+		}
+
+		synchronized void finish() {
+			thread = null;
+			finished = true;
+			//don't leak an interrupt into the next task of this thread
+			Thread.interrupted();
+			if (error == null) stopped = null;
+		}
+
+		void complete() {
 			onComplete.accept(this);
+			future.complete(this);
+		}
+
+		/**Complete a task that won't run, because it was superseded or removed from its pool.
+		 * The completion callback sees the reason as {@link #stopped} and {@link #error}, the future gets cancelled.
+		 * @param reason */
+		void drop(String reason) {
+			synchronized(this) {
+				if (finished) return;
+				finished = true;
+				stopped = reason;
+			}
+			error = new SignalError(-1, reason);
+			onComplete.accept(this);
+			future.cancel(false);
+		}
+
+		/**@return a future that completes with this task after it ran,
+		 * or is cancelled when the task gets superseded or its pool shuts down. */
+		public CompletableFuture<Task> future() {
+			return future;
 		}
 
 		public void log() {
-			System.out.printf("ran %d operations in %d µs\n", ticks, time / 1000);
+			System.out.printf("ran %d operations in %d µs, allocated %d KiB\n", ticks, time / 1000, allocated >> 10);
 		}
 
+		/**@return the interpreter that ran this task or null if it didn't run yet */
 		public Interpreter interpreter() {
-			return Interpreter.this;
+			return ip;
 		}
 	}
 
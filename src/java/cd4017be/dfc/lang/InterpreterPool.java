@@ -0,0 +1,181 @@
+package cd4017be.dfc.lang;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import cd4017be.dfc.lang.Interpreter.Task;
+
+/**Runs {@link Task}s on a fixed number of worker threads, each with its own {@link Interpreter}.
+ * Waiting tasks are kept in a bounded queue ordered by {@link Task#priority} and then submission order.
+ * @author cd4017be */
+public class InterpreterPool {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+	private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+	private final Interpreter[] workers;
+	private final int capacity;
+	private long seq;
+	private boolean terminated;
+
+	/**Create a pool with one worker per processor. */
+	public InterpreterPool() {
+		this(Runtime.getRuntime().availableProcessors(), 256);
+	}
+
+	/**@param n number of worker threads
+	 * @param capacity maximum number of waiting tasks */
+	public InterpreterPool(int n, int capacity) {
+		this(n, capacity, daemonThreads("interpreter-"));
+	}
+
+	/**@param n number of workers
+	 * @param capacity maximum number of waiting tasks
+	 * @param factory creates the worker threads. Runtimes with lightweight threads
+	 * can provide them here, so that many tasks blocked in I/O don't occupy a platform thread each. */
+	public InterpreterPool(int n, int capacity, ThreadFactory factory) {
+		if (n <= 0 || capacity <= 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.workers = new Interpreter[n];
+		for (int i = 0; i < n; i++) {
+			Interpreter ip = workers[i] = new Interpreter();
+			factory.newThread(() -> work(ip)).start();
+		}
+	}
+
+	/**@param prefix thread name prefix
+	 * @return a factory for daemon threads with slightly lower priority than the current thread */
+	public static ThreadFactory daemonThreads(String prefix) {
+		int prio = Math.max(Thread.MIN_PRIORITY, Thread.currentThread().getPriority() - 1);
+		AtomicInteger n = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, prefix + n.getAndIncrement());
+			t.setPriority(prio);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	/**Queue a task for execution.
+	 * Waiting tasks with the same {@link Task#key} are superseded:
+	 * they complete with a "superseded" error and get their future cancelled.
+	 * Blocks while the queue is full.
+	 * @param task
+	 * @return the task's future
+	 * @throws RejectedExecutionException if the pool was terminated */
+	public CompletableFuture<Task> submit(Task task) {
+		ArrayList<Task> superseded = new ArrayList<>();
+		lock.lock();
+		try {
+			if (task.key != null) remove(task.key, superseded);
+			while(!terminated && queue.size() >= capacity)
+				notFull.awaitUninterruptibly();
+			if (terminated) throw new RejectedExecutionException("interpreter pool terminated");
+			queue.add(new Entry(task, seq++));
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		for (Task t : superseded) t.drop("superseded");
+		return task.future();
+	}
+
+	/**Remove all waiting tasks with the given key and abort the running ones.
+	 * Removed tasks complete with a "cancelled" error and get their future cancelled.
+	 * @param key */
+	public void cancel(Object key) {
+		ArrayList<Task> removed = new ArrayList<>();
+		lock.lock();
+		try {
+			remove(key, removed);
+		} finally {
+			lock.unlock();
+		}
+		for (Task t : removed) t.drop("cancelled");
+		for (Interpreter ip : workers) {
+			Task t = ip.task();
+			if (t != null && Objects.equals(t.key, key)) t.cancel();
+		}
+	}
+
+	/**Stop all workers, aborting running tasks and cancelling waiting ones,
+	 * which complete with a "terminated" error. */
+	public void terminate() {
+		ArrayList<Task> removed = new ArrayList<>();
+		lock.lock();
+		try {
+			terminated = true;
+			for (Entry e : queue) removed.add(e.task);
+			queue.clear();
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Task t : removed) t.drop("terminated");
+		for (Interpreter ip : workers) {
+			Task t = ip.task();
+			if (t != null) t.cancel();
+		}
+	}
+
+	/**@return number of tasks waiting to run */
+	public int waiting() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void remove(Object key, ArrayList<Task> removed) {
+		for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+			Task t = it.next().task;
+			if (key.equals(t.key)) {
+				it.remove();
+				removed.add(t);
+			}
+		}
+		if (!removed.isEmpty()) notFull.signalAll();
+	}
+
+	private Task take() {
+		lock.lock();
+		try {
+			while(!terminated && queue.isEmpty())
+				notEmpty.awaitUninterruptibly();
+			if (terminated) return null;
+			notFull.signal();
+			return queue.poll().task;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void work(Interpreter ip) {
+		for (Task task; (task = take()) != null;)
+			try {
+				ip.run(task);
+			} catch(Throwable e) {
+				e.printStackTrace();
+				task.future().completeExceptionally(e);
+			}
+	}
+
+	private record Entry(Task task, long seq) implements Comparable<Entry> {
+		@Override
+		public int compareTo(Entry o) {
+			int c = Integer.compare(o.task.priority, task.priority);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+}
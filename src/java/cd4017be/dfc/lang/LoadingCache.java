@@ -4,6 +4,8 @@ import java.io.*;
 import java.lang.ref.WeakReference;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import cd4017be.dfc.lang.CircuitFile.Indexer;
 
@@ -12,9 +14,9 @@ import cd4017be.dfc.lang.CircuitFile.Indexer;
  * @author CD4017BE */
 public class LoadingCache {
 
-	private static final ArrayList<ModuleRoot> ROOTS = new ArrayList<>();
+	private static final CopyOnWriteArrayList<ModuleRoot> ROOTS = new CopyOnWriteArrayList<>();
 	private static final URL BUILTIN_ROOT;
-	private static final HashMap<String, WeakReference<Module>> MODULES = new HashMap<>();
+	private static final ConcurrentHashMap<String, Slot> MODULES = new ConcurrentHashMap<>();
 	public static final Module LOADER;
 	static {
 		BUILTIN_ROOT = LoadingCache.class.getResource("/modules/");
@@ -26,21 +28,37 @@ public class LoadingCache {
 		ROOTS.add(new ModuleRoot(path, new PluginClassLoader(path), index));
 	}
 
-	public static synchronized Module getModule(String name) {
-		var ref = MODULES.get(name);
-		Module m = ref == null ? null : ref.get();
-		if (m == null) {
+	/**@param name
+	 * @return the loaded module with the given name.
+	 * Only the first thread to request a module loads it, others requesting it meanwhile wait for that. */
+	public static Module getModule(String name) {
+		Slot slot = MODULES.computeIfAbsent(name, n -> new Slot());
+		Module m = slot.get();
+		if (m != null) return m;
+		synchronized(slot) {
+			if ((m = slot.get()) != null) return m;
 			if (ROOTS.isEmpty()) throw new IllegalStateException("no roots");
 			ModuleRoot root = null;
 			for (int i = 0; i < ROOTS.size(); i++)
 				if ((root = ROOTS.get(i)).contains(name))
 					break;
 			m = new Module(name, root);
-			MODULES.put(name, new WeakReference<>(m));
+			slot.ref = new WeakReference<>(m);
 		}
 		return m;
 	}
 
+	/**Registry entry that modules are loaded under.
+	 * @author cd4017be */
+	private static class Slot {
+		volatile WeakReference<Module> ref;
+
+		Module get() {
+			WeakReference<Module> ref = this.ref;
+			return ref == null ? null : ref.get();
+		}
+	}
+
 	public static void listAllModules(ArrayList<String> list) {
 		for (ModuleRoot root : ROOTS)
 			for (String name : root.index)
@@ -3,6 +3,7 @@ package cd4017be.dfc.lang;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 import org.lwjgl.system.MemoryStack;
@@ -22,15 +23,15 @@ public class Module {
 	public final String name;
 	private final ModuleRoot root;
 	public final LinkedHashMap<String, Module> imports = new LinkedHashMap<>();
-	private final HashMap<String, BlockDef> blocks = new LinkedHashMap<>();
-	private final HashMap<String, Type> types = new HashMap<>();
-	public final HashMap<String, PaletteGroup> palettes = new HashMap<>();
-	public final HashMap<String, Function<BlockDef, NodeAssembler>> assemblers = new HashMap<>();
-	public final HashMap<String, ArgumentParser> parsers = new HashMap<>();
+	private final ConcurrentHashMap<String, BlockDef> blocks = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Type> types = new ConcurrentHashMap<>();
+	public final ConcurrentHashMap<String, PaletteGroup> palettes = new ConcurrentHashMap<>();
+	public final ConcurrentHashMap<String, Function<BlockDef, NodeAssembler>> assemblers = new ConcurrentHashMap<>();
+	public final ConcurrentHashMap<String, ArgumentParser> parsers = new ConcurrentHashMap<>();
 	final Class<?> moduleImpl;
 	private final ConstList cfg;
 	private String[] iconIndex;
-	private boolean loaded;
+	private volatile boolean loaded;
 	int trace0 = -3;
 
 	public Module(String name, ModuleRoot root) {
@@ -69,9 +70,11 @@ public class Module {
 	}
 
 	public Module loadPalettes() {
-		if (!loaded) {
-			Intrinsics.loadModule(this);
-			loaded = true;
+		if (!loaded) synchronized(this) {
+			if (!loaded) {
+				Intrinsics.loadModule(this);
+				loaded = true;
+			}
 		}
 		return this;
 	}
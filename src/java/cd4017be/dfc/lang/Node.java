@@ -11,7 +11,7 @@ public class Node {
 
 	public final Instruction op;
 	public final Vertex[] in;
-	private Vertex out;
+	Vertex out;
 	public final int mode, idx;
 	private int wait;
 	int addr = -1;
@@ -43,6 +43,17 @@ public class Node {
 			in[i] = new Vertex(this, i);
 	}
 
+	/**Connect all consumers of this node to the given node instead
+	 * and disconnect this node's inputs.
+	 * @param node the replacement */
+	public void replaceWith(Node node) {
+		for (Vertex v; (v = out) != null;) {
+			v.disconnect();
+			v.connect(node);
+		}
+		for (Vertex v : in) v.disconnect();
+	}
+
 	public int addr(int fallback) {
 		int a = addr;
 		return a != 0 ? a : in.length > 0 ? addr = in[0].addr(fallback) : a;
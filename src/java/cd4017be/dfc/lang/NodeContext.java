@@ -16,9 +16,20 @@ import modules.dfc.core.Intrinsics;
  * @author CD4017BE */
 public class NodeContext {
 
+	/** wall-clock limit in ms for evaluating circuits while they are edited */
+	public static final long EDIT_TIMEOUT = Long.getLong("dfc.editTimeout", 1000);
+
 	public final BlockDef def;
 	public final HashMap<String, Node> links = new HashMap<>();
 	public final Value[] env;
+	/** maximum number of blocks of called functions to inline them, 0 disables inlining */
+	public int inlineLimit;
+	/** the context this function is inlined into or null */
+	private NodeContext caller;
+	/** block index that all nodes are assigned to or -1 to use their own */
+	private int pos = -1;
+	/** results of the previous {@link #typeCheck} runs */
+	private ResultCache results;
 
 	public NodeContext(BlockDef def, boolean env) {
 		this.def = def.defined();
@@ -37,33 +48,58 @@ public class NodeContext {
 		links.clear();
 		for (int i = 0; i < blocks.size(); i++) {
 			BlockDesc block = blocks.get(i);
+			int idx = pos < 0 ? i : pos;
 			try {
-				block.def.defined().assembler.assemble(block, this, i);
+				block.def.defined().assembler.assemble(block, this, idx);
 			} catch (SignalConflict e) {
-				throw new SignalError(i, "signal conflict");
+				throw new SignalError(idx, "signal conflict");
 			}
 		}
 		for (int i = 0; i < blocks.size(); i++)
 			try {
 				blocks.get(i).connect();
 			} catch (SignalConflict e) {
-				throw new SignalError(i, "signal conflict");
-			}
-		if (addIns) {
-			int i = 0;
-			for (String arg : def.args) {
-				Node node = links.get(arg);
-				if (node != null && node.in[0].from == null)
-					node.in[0].connect(new Node(i));
-				i++;
+				throw new SignalError(pos < 0 ? i : pos, "signal conflict");
 			}
-			for (String in : def.ins) {
-				Node node = links.get(in);
-				if (node != null && node.in[0].from == null)
-					node.in[0].connect(new Node(i));
-				i++;
-			}
-		}
+		if (addIns) connectParams(null);
+	}
+
+	/**@param params nodes providing the function parameters (args first, then ins)
+	 * or null to read them from the function's input slots */
+	public void connectParams(Node[] params) {
+		int i = 0;
+		for (String arg : def.args)
+			connectParam(arg, params, i++);
+		for (String in : def.ins)
+			connectParam(in, params, i++);
+	}
+
+	private void connectParam(String name, Node[] params, int i) {
+		Node node = links.get(name);
+		if (node != null && node.in[0].from == null)
+			node.in[0].connect(params == null ? new Node(i) : params[i]);
+	}
+
+	/**@param def the function to inline
+	 * @param idx index of the calling block
+	 * @return a context to build the given function into this one,
+	 * or null if inlining is disabled or would be recursive */
+	public NodeContext inlineContext(BlockDef def, int idx) {
+		if (inlineLimit <= 0) return null;
+		for (NodeContext c = this; c != null; c = c.caller)
+			if (c.def == def) return null;
+		NodeContext c = new NodeContext(def, false);
+		c.inlineLimit = inlineLimit;
+		c.caller = this;
+		c.pos = pos < 0 ? idx : pos;
+		return c;
+	}
+
+	/**@return the context of the function that everything gets inlined into */
+	public NodeContext root() {
+		NodeContext c = this;
+		while(c.caller != null) c = c.caller;
+		return c;
 	}
 
 	public String[] collectOutputs(Node out) {
@@ -78,22 +114,37 @@ public class NodeContext {
 		return names;
 	}
 
-	public void typeCheck(Interpreter ip, IndexedSet<? extends BlockDesc> blocks, Consumer<Task> after) {
+	/**Build the given circuit and evaluate it with the parameter values from {@link #env}.
+	 * Tasks for the same context supersede each other while they wait in the pool
+	 * and are stopped after {@link #EDIT_TIMEOUT}.
+	 * Pure nodes whose inputs didn't change since the previous run are replaced by their previous result.
+	 * @param ip
+	 * @param blocks
+	 * @param after called with the finished task
+	 * @return the submitted task */
+	public Task typeCheck(InterpreterPool ip, IndexedSet<? extends BlockDesc> blocks, Consumer<Task> after) {
 		try {
 			Profiler p = new Profiler(System.out);
 			build(blocks, true);
 			Node out = new Node();
 			collectOutputs(out);
-			p.end("assembled");
 			Function f = def.assembler instanceof Function ff ? ff : new Function(def);
-			f.define(out);
+			if (results == null) results = new ResultCache(f);
+			Consumer<Value[]> remember = results.apply(out, blocks);
+			p.end("assembled");
+			f.define(out, false);
 			p.end("compiled");
 			Value[] state = new Value[f.vars.length];
 			for (int i = 0; i <= f.par; i++)
 				state[i] = env[i];
-			ip.new Task(def, f.code, state, 1000000, after);
+			Task task = new Task(def, f.code, state, 1000000, Task.INTERACTIVE, this, t -> {
+				remember.accept(t.vars);
+				after.accept(t);
+			}).timeout(EDIT_TIMEOUT);
+			ip.submit(task);
+			return task;
 		} catch (SignalError e) {
-			ip.new Task(def, e, after);
+			return new Task(def, e, after);
 		}
 	}
 
@@ -0,0 +1,149 @@
+package cd4017be.dfc.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import cd4017be.dfc.lang.Node.Vertex;
+import cd4017be.dfc.lang.instructions.ConstantIns;
+import cd4017be.dfc.lang.instructions.PackIns;
+import cd4017be.dfc.lang.instructions.ParallelIns;
+import cd4017be.dfc.lang.instructions.UnpackIns;
+
+/**Transformations on the Node graph of a function,
+ * applied after {@link NodeContext#build} and before {@link Node#evalScopes}.
+ * @author cd4017be */
+public class Optimizer {
+
+	/**@param out the output node of the function */
+	public static void optimize(Node out) {
+		unpack(sort(out));
+		fold(sort(out));
+		merge(sort(out));
+	}
+
+	/**@param root
+	 * @return all nodes root depends on (including itself), with inputs listed before their consumers */
+	static ArrayList<Node> sort(Node root) {
+		ArrayList<Node> list = new ArrayList<>();
+		IdentityHashMap<Node, Node> visited = new IdentityHashMap<>();
+		ArrayList<Node> stack = new ArrayList<>();
+		ArrayList<Integer> pos = new ArrayList<>();
+		visited.put(root, root);
+		stack.add(root);
+		pos.add(0);
+		while(!stack.isEmpty()) {
+			int i = stack.size() - 1, j = pos.get(i);
+			Node node = stack.get(i);
+			if (j == node.in.length) {
+				stack.remove(i);
+				pos.remove(i);
+				list.add(node);
+				continue;
+			}
+			pos.set(i, j + 1);
+			Node from = node.in[j].from;
+			if (from != null && visited.put(from, from) == null) {
+				stack.add(from);
+				pos.add(0);
+			}
+		}
+		return list;
+	}
+
+	/**@param nodes
+	 * @return whether any of the nodes may have side effects, like writing array contents */
+	static boolean writes(List<Node> nodes) {
+		for (Node node : nodes)
+			if (node.mode == Node.INSTR && node.op != null && ParallelIns.pure(node.op, null) != Boolean.TRUE)
+				return true;
+		return false;
+	}
+
+	/**@param v
+	 * @return the node that actually provides the value for v, skipping plain links */
+	static Node source(Vertex v) {
+		Node node = v.from;
+		while(node != null && node.mode == Node.PASS && node.in.length == 1)
+			node = node.in[0].from;
+		return node;
+	}
+
+	/**Scalar replacement of element bundles: connects the consumers of each unpack node
+	 * directly to the corresponding input of the pack node it reads from.
+	 * Pack nodes that don't escape anywhere else become unused and are disconnected.
+	 * @param nodes in topological order */
+	static void unpack(ArrayList<Node> nodes) {
+		for (Node node : nodes) {
+			if (node.mode != Node.INSTR || !(node.op instanceof UnpackIns u)) continue;
+			Node pack = source(node.in[0]);
+			int i = u.index();
+			if (pack == null || pack.mode != Node.INSTR || !(pack.op instanceof PackIns) || i >= pack.in.length) continue;
+			//unconnected elements read the pack's scope, which the consumers may not be in
+			if (source(pack.in[i]) == null) continue;
+			node.replaceWith(pack.in[i].from);
+			if (pack.out == null) pack.replaceWith(null);
+		}
+	}
+
+	/**Constant folding: evaluates pure instructions whose inputs are all constant
+	 * and replaces them with their result.
+	 * @param nodes in topological order */
+	static void fold(ArrayList<Node> nodes) {
+		for (Node node : nodes) {
+			if (node.mode != Node.INSTR || node.op == null || node.op instanceof ConstantIns || node.op.pureOp() == null) continue;
+			int n = node.in.length;
+			Value[] vars = new Value[n + 2];
+			int[] io = new int[n + 2];
+			for (int i = 0; i < n; i++) {
+				Node src = source(node.in[i]);
+				if (src == null || !(src.op instanceof ConstantIns c)) {
+					vars = null;
+					break;
+				}
+				vars[i + 2] = c.value();
+				io[i + 2] = i + 2;
+			}
+			if (vars == null) continue;
+			try {
+				io[1] = 1;
+				node.op.setIO(io).eval(null, vars);
+			} catch(SignalError e) {
+				//leave it to fail at runtime
+				continue;
+			}
+			node.replaceWith(ConstantIns.node(vars[0], node.idx));
+		}
+	}
+
+	/**Common subexpression elimination: merges pure nodes that perform the same operation on the same inputs.
+	 * The merged node is evaluated in the union of its consumers' scopes, so it only moves out of
+	 * a switch branch if all branches need it.
+	 * Reads of array contents are never {@link Instruction#pureOp() pure}, so they aren't merged
+	 * across writes to the same array. Unpacking elements is only merged if nothing writes,
+	 * because elements can be replaced in place.
+	 * @param nodes in topological order */
+	static void merge(ArrayList<Node> nodes) {
+		HashMap<Key, Node> known = new HashMap<>();
+		boolean writes = writes(nodes);
+		for (Node node : nodes) {
+			if (node.mode != Node.INSTR || node.op == null || writes && node.op instanceof UnpackIns) continue;
+			Object op = node.op.pureOp();
+			if (op == null) continue;
+			Node[] ins = new Node[node.in.length];
+			for (int i = 0; i < ins.length; i++)
+				//unconnected inputs read the scope, which depends on where the node ends up
+				if ((ins[i] = source(node.in[i])) == null) {
+					ins = null;
+					break;
+				}
+			if (ins == null) continue;
+			Node other = known.putIfAbsent(new Key(node.op.getClass(), op, Arrays.asList(ins)), node);
+			if (other != null) node.replaceWith(other);
+		}
+	}
+
+	private record Key(Class<?> kind, Object op, List<Node> ins) {}
+
+}
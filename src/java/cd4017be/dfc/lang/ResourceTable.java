@@ -0,0 +1,90 @@
+package cd4017be.dfc.lang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**The resources (open files etc.) owned by a {@link Interpreter.Task}, referenced via 64-bit ids
+ * consisting of the table index and a sequence number, so stale ids don't reach reused entries.
+ * Interpreters that evaluate parts of the same task concurrently share its table,
+ * so all operations are synchronized.
+ * @author cd4017be */
+public class ResourceTable {
+
+	private Closeable[] resources;
+	private int[] ids;
+	private long[] free;
+	private int lastId;
+
+	/**@param r resource to add
+	 * @return its id */
+	public synchronized long add(Closeable r) {
+		if (free == null) {
+			resources = new Closeable[64];
+			ids = new int[64];
+			free = new long[] {-1};
+		}
+		int j; findFreeIdx: {
+			int l = free.length;
+			for (int i = 0; i < l; i++) {
+				long f = free[i];
+				if (f == 0) continue;
+				j = i * 64 + Long.numberOfTrailingZeros(f);
+				break findFreeIdx;
+			}
+			free = Arrays.copyOf(free, l * 2);
+			Arrays.fill(free, l, l * 2, -1L);
+			l *= 64;
+			resources = Arrays.copyOf(resources, l * 2);
+			ids = Arrays.copyOf(ids, l * 2);
+			j = l;
+		}
+		free[j >> 6] ^= 1L << j;
+		resources[j] = r;
+		return j | (long)(ids[j] = ++lastId) << 32;
+	}
+
+	/**@param id
+	 * @return the resource with the given id or null if it doesn't exist (anymore) */
+	public synchronized Closeable get(long id) {
+		if (ids == null) return null;
+		int idx = (int)id & ids.length - 1;
+		return ids[idx] == (int)(id >> 32) ? resources[idx] : null;
+	}
+
+	/**@param id
+	 * @return the removed resource with the given id or null if it doesn't exist (anymore) */
+	public synchronized Closeable remove(long id) {
+		if (ids == null) return null;
+		int idx = (int)id & ids.length - 1;
+		if (ids[idx] != (int)(id >> 32))
+			return null;
+		Closeable r = resources[idx];
+		resources[idx] = null;
+		ids[idx] = 0;
+		free[idx >> 6] |= 1L << idx;
+		return r;
+	}
+
+	/**Close and remove all resources. */
+	public synchronized void closeAll() {
+		if (free == null) return;
+		for (int i = 0; i < free.length; i++) {
+			long f = free[i];
+			if (f == -1) continue;
+			for (int j = i * 64, j1 = j + 64; j < j1; j++) {
+				Closeable r = resources[j];
+				if (r == null) continue;
+				resources[j] = null;
+				try {
+					r.close();
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			free[i] = -1;
+		}
+		lastId = 0;
+	}
+
+}
@@ -0,0 +1,143 @@
+package cd4017be.dfc.lang;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import cd4017be.dfc.lang.builders.Function;
+import cd4017be.dfc.lang.instructions.ConstantIns;
+import cd4017be.dfc.lang.instructions.FunctionIns;
+import cd4017be.dfc.lang.instructions.UnpackIns;
+import cd4017be.util.IndexedSet;
+
+/**Remembers the results of pure nodes from previous evaluations of a circuit being edited,
+ * so that after an edit only the nodes downstream of the change need to be evaluated again.
+ * <p> Nodes are identified structurally by their operation and the identities of their inputs.
+ * Only nodes that don't depend on function parameters, the scope or loop state are considered,
+ * so replacing them by their previous result is equivalent to {@link Optimizer#fold constant folding}.
+ * Elements can be modified in place, so unpacking them is only cached in circuits that have no side effects. </p>
+ * @author cd4017be */
+public class ResultCache {
+
+	/** function being edited, calls to it are never cached */
+	private final Function self;
+	/** keys of the last build, so equal keys of the next build are mapped to the same instance */
+	private HashMap<Key, Key> keys = new HashMap<>();
+
+	/**@param self the function the circuit defines or null */
+	public ResultCache(Function self) {
+		this.self = self;
+	}
+
+	/**Replace all nodes with a known result by constants.
+	 * @param out output node of the circuit
+	 * @param blocks their outputs are redirected to the replacement nodes
+	 * @return to be called with the frame after the circuit was evaluated, to remember its results */
+	public synchronized Consumer<Value[]> apply(Node out, IndexedSet<? extends BlockDesc> blocks) {
+		HashMap<Key, Key> old = keys, keys = new HashMap<>();
+		IdentityHashMap<Node, Key> nodeKeys = new IdentityHashMap<>();
+		IdentityHashMap<Node, Node> replaced = new IdentityHashMap<>();
+		ArrayList<Node> nodes = new ArrayList<>();
+		ArrayList<Key> used = new ArrayList<>();
+		ArrayList<Node> sorted = Optimizer.sort(out);
+		boolean writes = Optimizer.writes(sorted);
+		for (Node node : sorted) {
+			Key key = key(node, nodeKeys, writes);
+			if (key == null) continue;
+			Key k = keys.get(key);
+			if (k == null) keys.put(k = old.getOrDefault(key, key), k);
+			nodeKeys.put(node, k);
+			Value val = k.result;
+			if (val != null && !(node.op instanceof ConstantIns)) {
+				Node c = ConstantIns.node(val, node.idx);
+				node.replaceWith(c);
+				replaced.put(node, c);
+				nodeKeys.put(c, k);
+			} else if (val == null) {
+				nodes.add(node);
+				used.add(k);
+			}
+		}
+		this.keys = keys;
+		if (!replaced.isEmpty())
+			for (BlockDesc block : blocks) {
+				Node[] outs = block.outs;
+				for (int i = 0; i < outs.length; i++) {
+					Node c = replaced.get(outs[i]);
+					if (c != null) outs[i] = c;
+				}
+			}
+		return vars -> {
+			synchronized(this) {
+				for (int i = 0; i < nodes.size(); i++) {
+					int addr = nodes.get(i).addr;
+					if (addr > 0 && addr < vars.length && vars[addr] != null)
+						used.get(i).result = vars[addr];
+				}
+			}
+		};
+	}
+
+	private Key key(Node node, IdentityHashMap<Node, Key> nodeKeys, boolean writes) {
+		if (node.mode != Node.INSTR || node.op == null || writes && node.op instanceof UnpackIns) return null;
+		Object op;
+		if (node.op instanceof ConstantIns c) op = constant(c.value());
+		else if (node.op instanceof FunctionIns fi) {
+			Function f = fi.function();
+			if (f == self || f.pure(null) != Boolean.TRUE || f.code == null) return null;
+			//a recompiled function gets a new code array
+			op = List.of(f, f.code);
+		} else if ((op = node.op.pureOp()) == null) return null;
+		else op = List.of(node.op.getClass(), op);
+		Key[] ins = new Key[node.in.length];
+		for (int i = 0; i < ins.length; i++) {
+			Node src = Optimizer.source(node.in[i]);
+			if (src == null || (ins[i] = nodeKeys.get(src)) == null) return null;
+		}
+		return new Key(op, ins);
+	}
+
+	/** constants with more data are only identified by their arrays */
+	private static final int MAX_CONTENT = 256;
+
+	/**@param v
+	 * @return an object that equals the one for any other value with the same content,
+	 * if v has no elements and little data. Otherwise v itself, which equals other values with the same arrays. */
+	private static Object constant(Value v) {
+		if (v.elements.length > 0 || v.data.length > MAX_CONTENT) return v;
+		return List.of(v.type, v.value, ByteBuffer.wrap(v.data));
+	}
+
+	/**Identifies a node by its operation and the (interned) keys of its inputs. */
+	private static final class Key {
+		final Object op;
+		final Key[] ins;
+		final int hash;
+		Value result;
+
+		Key(Object op, Key[] ins) {
+			this.op = op;
+			this.ins = ins;
+			int h = op.hashCode();
+			for (Key k : ins) h = h * 31 + System.identityHashCode(k);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key k && k.hash == hash && k.ins.length == ins.length && k.op.equals(op)))
+				return false;
+			for (int i = 0; i < ins.length; i++)
+				if (k.ins[i] != ins[i]) return false;
+			return true;
+		}
+	}
+
+}
@@ -1,19 +1,40 @@
 package cd4017be.dfc.lang;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 import cd4017be.dfc.lang.Node.Vertex;
+import cd4017be.dfc.lang.instructions.ConstantIns;
+import cd4017be.dfc.lang.instructions.FusedIns;
 import cd4017be.dfc.lang.instructions.LoopIns;
+import cd4017be.dfc.lang.instructions.ParallelIns;
 import cd4017be.dfc.lang.instructions.SwitchIns;
+import cd4017be.dfc.lang.instructions.UnpackIns;
 
 /**
  * 
  * @author CD4017BE */
 public class ScopeBranch extends Scope {
 
+	/** {@link #compile(int[], int)} flag for fusing chains of intrinsics into {@link FusedIns superinstructions} */
+	public static final int FUSE = 1;
+	/** {@link #compile(int[], int)} flag for running independent parts concurrently via {@link ParallelIns} */
+	public static final int PARALLEL = 2;
+
 	public final Node node;
 	public final int path;
 	public final ArrayList<Node> members = new ArrayList<>();
+	/** loop invariant members of a loop body, evaluated once before the first iteration */
+	public final ArrayList<Node> head = new ArrayList<>();
+	/** groups of members to run concurrently, in evaluation order */
+	private final ArrayList<Stage> stages = new ArrayList<>();
 	private Instruction[] code;
 	public int addr;
 
@@ -49,11 +70,236 @@ public class ScopeBranch extends Scope {
 		members.add(node);
 	}
 
-	public Instruction[] compile(int[] errLut) throws SignalError {
-		if (this.code != null) return code;
-		Instruction[] code = this.code = new Instruction[members.size()];
-		for (int i = 0, ri = code.length - 1; ri >= 0; i++, ri--) {
+	/**Loop-invariant code motion: moves the pure members of all loop bodies within this scope
+	 * that don't depend on their loop's state into the {@link #head} of the body.
+	 * Reads of array contents aren't pure, and element extractions are only moved out of bodies without side effects.
+	 * Must be called after {@link Node#evalScopes(Node, int)}. */
+	public void hoistInvariants() {
+		for (Node node : members)
+			switch(node.mode) {
+				case Node.SWT -> {
+					for (int j = 1; j < node.in.length; j++)
+						((ScopeBranch)node.in[j].scope()).hoistInvariants();
+				}
+				case Node.END -> {
+					ScopeBranch body = (ScopeBranch)node.in[2].scope();
+					body.hoistInvariants();
+					body.hoist(node.in[0].from());
+				}
+			}
+	}
+
+	private void hoist(Node begin) {
+		IdentityHashMap<Node, Node> variant = new IdentityHashMap<>();
+		variant.put(begin, begin);
+		//elements of a signal can be modified in place, so reading them only stays invariant if nothing writes
+		boolean writes = members.stream().anyMatch(ScopeBranch::mayWrite);
+		for (int i = members.size() - 1; i >= 0; i--) {
 			Node node = members.get(i);
+			boolean inv = node.mode == Node.INSTR && node.op.pureOp() != null
+				&& !(writes && node.op instanceof UnpackIns);
+			for (int j = 0; inv && j < node.in.length; j++) {
+				Node src = Optimizer.source(node.in[j]);
+				inv = src == null || src.mode != Node.PASS && !variant.containsKey(src);
+			}
+			if (inv) head.add(0, members.remove(i));
+			else variant.put(node, node);
+		}
+	}
+
+	/**Looks for function calls or loops that don't depend on each other, in this scope and all nested scopes,
+	 * so they can run concurrently. Their exclusive dependencies are grouped together and
+	 * the members are reordered into stages of: the nodes that must run before,
+	 * each group and the nodes that depend on their results.
+	 * Members that may have side effects keep their relative order, and groups that use
+	 * any input of such members (which might be an array modified in place) are not forked.
+	 * Must be called after {@link #hoistInvariants()} and before slot allocation. */
+	public void parallelize() {
+		for (Node node : members)
+			switch(node.mode) {
+				case Node.SWT -> {
+					for (int j = 1; j < node.in.length; j++)
+						((ScopeBranch)node.in[j].scope()).parallelize();
+				}
+				case Node.END -> ((ScopeBranch)node.in[2].scope()).parallelize();
+			}
+		stages.clear();
+		ArrayList<Node> order = new ArrayList<>(members), res = new ArrayList<>();
+		Collections.reverse(order);
+		for (ArrayList<ArrayList<Node>> parts; (parts = split(order)) != null;) {
+			order = parts.remove(parts.size() - 1);
+			int[] n = new int[parts.size()];
+			for (int i = 0; i < n.length; i++)
+				res.addAll(parts.get(i));
+			for (int i = 0; i < n.length; i++)
+				n[i] = parts.get(i).size();
+			stages.add(new Stage(n[0], n[1], Arrays.copyOfRange(n, 2, n.length)));
+		}
+		if (stages.isEmpty()) return;
+		res.addAll(order);
+		Collections.reverse(res);
+		members.clear();
+		members.addAll(res);
+	}
+
+	/**@param nodes in evaluation order
+	 * @return the nodes to run before, the ones for the current thread,
+	 * those for each forked task and the ones to run after or null if nothing worth running concurrently */
+	private static ArrayList<ArrayList<Node>> split(ArrayList<Node> nodes) {
+		int n = nodes.size();
+		IdentityHashMap<Node, Integer> index = new IdentityHashMap<>();
+		for (int i = 0; i < n; i++) index.put(nodes.get(i), i);
+		BitSet[] anc = new BitSet[n];
+		//what writers use as input may be modified in place, so forks must not read it
+		IdentityHashMap<Node, Node> written = new IdentityHashMap<>();
+		BitSet writers = new BitSet(n);
+		for (int i = 0, w = -1; i < n; i++) {
+			BitSet a = anc[i] = new BitSet(n);
+			Node node = nodes.get(i);
+			boolean write = mayWrite(node);
+			dependencies(node, src -> {
+				if (write) written.put(src, src);
+				Integer j = index.get(src);
+				if (j != null) {
+					a.set(j);
+					a.or(anc[j]);
+				}
+			});
+			if (!write) continue;
+			writers.set(i);
+			//side effects keep their order
+			if (w >= 0) {
+				a.set(w);
+				a.or(anc[w]);
+			}
+			w = i;
+		}
+		//including everything they derive their inputs from
+		writers.stream().forEach(i -> anc[i].stream().forEach(j -> {
+			Node node = nodes.get(j);
+			written.put(node, node);
+			dependencies(node, src -> written.put(src, src));
+		}));
+		//pick independent costly nodes
+		ArrayList<Integer> sel = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			if (costly(nodes.get(i)) && sel.stream().noneMatch(anc[i]::get))
+				sel.add(i);
+		int m = sel.size();
+		if (m < 2) return null;
+		BitSet[] excl = new BitSet[m];
+		for (int k = 0; k < m; k++) {
+			int c = sel.get(k);
+			(excl[k] = (BitSet)anc[c].clone()).set(c);
+		}
+		BitSet shared = new BitSet(n);
+		for (int k = 0; k < m; k++)
+			for (int l = k + 1; l < m; l++) {
+				BitSet b = (BitSet)excl[k].clone();
+				b.and(excl[l]);
+				shared.or(b);
+			}
+		//groups with known side effects stay on the current thread
+		BitSet main = new BitSet(n), any = new BitSet(n);
+		ArrayList<BitSet> forks = new ArrayList<>();
+		for (int k = 0; k < m; k++) {
+			BitSet g = excl[k];
+			g.andNot(shared);
+			any.or(g);
+			if (k > 0 && g.stream().noneMatch(i -> impure(nodes.get(i)) || reads(nodes.get(i), written, g, index)))
+				forks.add(g);
+			else main.or(g);
+		}
+		if (forks.isEmpty()) return null;
+		BitSet pre = new BitSet(n), post = new BitSet(n);
+		for (int i = 0; i < n; i++)
+			if (!any.get(i)) (anc[i].intersects(any) ? post : pre).set(i);
+		ArrayList<ArrayList<Node>> parts = new ArrayList<>();
+		parts.add(select(nodes, pre));
+		parts.add(select(nodes, main));
+		for (BitSet g : forks) parts.add(select(nodes, g));
+		parts.add(select(nodes, post));
+		return parts;
+	}
+
+	/**@return whether node has an input from outside the group that is also used by (or for) a writer */
+	private static boolean reads(Node node, IdentityHashMap<Node, Node> written, BitSet group, IdentityHashMap<Node, Integer> index) {
+		boolean[] res = {false};
+		dependencies(node, src -> {
+			if (!written.containsKey(src)) return;
+			//constants without arrays can't be modified
+			if (src.op instanceof ConstantIns c && c.value().elements.length == 0 && c.value().data.length == 0) return;
+			Integer j = index.get(src);
+			if (j == null || !group.get(j)) res[0] = true;
+		});
+		return res[0];
+	}
+
+	private static ArrayList<Node> select(ArrayList<Node> nodes, BitSet idx) {
+		ArrayList<Node> list = new ArrayList<>(idx.cardinality());
+		idx.stream().forEach(i -> list.add(nodes.get(i)));
+		return list;
+	}
+
+	private boolean any(Predicate<Node> cond) {
+		return members.stream().anyMatch(cond) || head.stream().anyMatch(cond);
+	}
+
+	/**@return whether node contains function calls or loops */
+	private static boolean costly(Node node) {
+		return switch(node.mode) {
+			case Node.SWT -> {
+				for (int j = 1; j < node.in.length; j++)
+					if (((ScopeBranch)node.in[j].scope()).any(ScopeBranch::costly)) yield true;
+				yield false;
+			}
+			case Node.END -> true;
+			default -> ParallelIns.costly(node.op);
+		};
+	}
+
+	/**@return whether node is known to have side effects */
+	private static boolean impure(Node node) {
+		return switch(node.mode) {
+			case Node.SWT -> {
+				for (int j = 1; j < node.in.length; j++)
+					if (((ScopeBranch)node.in[j].scope()).any(ScopeBranch::impure)) yield true;
+				yield false;
+			}
+			case Node.END -> ((ScopeBranch)node.in[2].scope()).any(ScopeBranch::impure);
+			default -> ParallelIns.pure(node.op, null) == Boolean.FALSE;
+		};
+	}
+
+	/**@return whether node may have side effects */
+	private static boolean mayWrite(Node node) {
+		return switch(node.mode) {
+			case Node.SWT -> {
+				for (int j = 1; j < node.in.length; j++)
+					if (((ScopeBranch)node.in[j].scope()).any(ScopeBranch::mayWrite)) yield true;
+				yield false;
+			}
+			case Node.END -> ((ScopeBranch)node.in[2].scope()).any(ScopeBranch::mayWrite);
+			case Node.INSTR -> node.op != null && ParallelIns.pure(node.op, null) != Boolean.TRUE;
+			default -> false;
+		};
+	}
+
+	/**@param errLut frame slot -> block index
+	 * @param opt optimization flags: {@link #FUSE}, {@link #PARALLEL}
+	 * @return the instructions of this branch
+	 * @throws SignalError */
+	public Instruction[] compile(int[] errLut, int opt) throws SignalError {
+		if (this.code != null) return code;
+		return code = compile(members, (opt & PARALLEL) != 0 ? stages : List.of(), errLut, opt);
+	}
+
+	private Instruction[] compile(ArrayList<Node> members, List<Stage> stages, int[] errLut, int opt) throws SignalError {
+		int n = members.size();
+		Instruction[] code = new Instruction[n];
+		Node[] nodes = new Node[n];
+		for (int i = 0, ri = n - 1; ri >= 0; i++, ri--) {
+			Node node = nodes[ri] = members.get(i);
 			errLut[node.addr] = node.idx;
 			switch(node.mode) {
 				case Node.SWT -> {
@@ -65,14 +311,14 @@ public class ScopeBranch extends Scope {
 					for (int j = 0; j < branches.length; j++) {
 						Vertex in = node.in[j + 1];
 						io[j + 3] = in.addr(this.addr);
-						branches[j] = ((ScopeBranch)in.scope()).compile(errLut);
+						branches[j] = ((ScopeBranch)in.scope()).compile(errLut, opt);
 					}
 					code[ri] = new SwitchIns(branches, io);
 				}
 				case Node.END -> {
 					Vertex in = node.in[2];
 					ScopeBranch scope = (ScopeBranch)in.scope();
-					code[ri] = new LoopIns(scope.compile(errLut), node.in[1].addr(this.addr), in.addr(this.addr), node.in[0].addr(this.addr), this.addr, scope.addr);
+					code[ri] = new LoopIns(scope.compile(scope.head, List.of(), errLut, opt), scope.compile(errLut, opt), node.in[1].addr(this.addr), in.addr(this.addr), node.in[0].addr(this.addr), this.addr, scope.addr);
 				}
 				default -> {
 					int[] io = new int[node.in.length + 2];
@@ -84,7 +330,103 @@ public class ScopeBranch extends Scope {
 				}
 			}
 		}
-		return code;
+		boolean fuse = (opt & FUSE) != 0;
+		return stages.isEmpty() ? part(nodes, code, 0, n, fuse)
+			: new Instruction[] {parallel(nodes, code, stages, 0, 0, fuse)};
+	}
+
+	private Instruction parallel(Node[] nodes, Instruction[] code, List<Stage> stages, int s, int i, boolean fuse) {
+		Stage stage = stages.get(s);
+		int n = code.length, j = i + stage.pre, k = j + stage.main;
+		Instruction[] pre = part(nodes, code, i, j, fuse), main = part(nodes, code, j, k, fuse);
+		Instruction[][] forks = new Instruction[stage.forks.length][];
+		int[][] outs = new int[forks.length][];
+		IdentityHashMap<Node, Node> group = new IdentityHashMap<>();
+		for (int f = 0; f < forks.length; f++) {
+			int l = k + stage.forks[f];
+			forks[f] = part(nodes, code, k, l, fuse);
+			group.clear();
+			for (int x = k; x < l; x++) group.put(nodes[x], nodes[x]);
+			outs[f] = IntStream.range(k, l).filter(x -> observed(nodes[x], group))
+				.map(x -> nodes[x].addr(this.addr)).toArray();
+			k = l;
+		}
+		Instruction[] post = s + 1 < stages.size()
+			? new Instruction[] {parallel(nodes, code, stages, s + 1, k, fuse)}
+			: part(nodes, code, k, n, fuse);
+		return new ParallelIns(part(nodes, code, i, n, fuse), pre, main, forks, outs, post, this.addr);
+	}
+
+	private static Instruction[] part(Node[] nodes, Instruction[] code, int i, int j, boolean fuse) {
+		if (i == 0 && j == code.length) return fuse ? fuse(nodes, code) : code;
+		return part(Arrays.copyOfRange(nodes, i, j), Arrays.copyOfRange(code, i, j), 0, j - i, fuse);
+	}
+
+	/**@param pre number of nodes to run before forking
+	 * @param main number of nodes to run on the current thread
+	 * @param forks number of nodes to run in each forked task */
+	private record Stage(int pre, int main, int[] forks) {}
+
+	/**Visit all nodes outside the given node's nested scopes that its evaluation depends on,
+	 * looking through links. */
+	private static void dependencies(Node node, Consumer<Node> visitor) {
+		for (Vertex v : node.in) source(v.from(), visitor);
+		switch(node.mode) {
+			case Node.SWT -> {
+				for (int j = 1; j < node.in.length; j++)
+					((ScopeBranch)node.in[j].scope()).dependencies(visitor);
+			}
+			case Node.END -> ((ScopeBranch)node.in[2].scope()).dependencies(visitor);
+		}
+	}
+
+	private void dependencies(Consumer<Node> visitor) {
+		for (Node node : members) dependencies(node, visitor);
+		for (Node node : head) dependencies(node, visitor);
+	}
+
+	private static void source(Node node, Consumer<Node> visitor) {
+		if (node == null) return;
+		if (node.mode != Node.PASS) visitor.accept(node);
+		else for (Vertex v : node.in) source(v.from(), visitor);
+	}
+
+	private static Instruction[] fuse(Node[] nodes, Instruction[] code) {
+		ArrayList<Instruction> res = new ArrayList<>(code.length);
+		IdentityHashMap<Node, Node> chain = new IdentityHashMap<>();
+		int n = code.length;
+		for (int i = 0; i < n;) {
+			if (!FusedIns.fusable(code[i])) {
+				res.add(code[i++]);
+				continue;
+			}
+			int j = i + 1;
+			while(j < n && j - i < FusedIns.MAX_CHAIN && FusedIns.fusable(code[j])) j++;
+			Instruction ins = null;
+			if (j - i > 1) {
+				chain.clear();
+				for (int k = i; k < j; k++)
+					chain.put(nodes[k], nodes[k]);
+				boolean[] keep = new boolean[j - i];
+				for (int k = i; k < j; k++)
+					keep[k - i] = observed(nodes[k], chain);
+				ins = FusedIns.fuse(Arrays.copyOfRange(code, i, j), keep);
+			}
+			if (ins != null) res.add(ins);
+			else for (int k = i; k < j; k++) res.add(code[k]);
+			i = j;
+		}
+		return res.size() == n ? code : res.toArray(Instruction[]::new);
+	}
+
+	/**@return whether the value of node is read by anything outside the given set of nodes */
+	private static boolean observed(Node node, IdentityHashMap<Node, Node> chain) {
+		for (Vertex v = node.out; v != null; v = v.next) {
+			Node to = v.to;
+			if (to.mode == Node.PASS && v.toIdx == 0 ? observed(to, chain) : !chain.containsKey(to))
+				return true;
+		}
+		return false;
 	}
 
 }
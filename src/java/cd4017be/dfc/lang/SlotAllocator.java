@@ -0,0 +1,164 @@
+package cd4017be.dfc.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import cd4017be.dfc.lang.Node.Vertex;
+
+/**Liveness based frame slot allocation that runs between {@link Node#evalScopes(Node, int)}
+ * and {@link ScopeBranch#compile(int[], int)}.
+ * Nodes and scopes are re-addressed so that values whose last consumer has already executed
+ * hand their frame slot over to later values.
+ * <p> Program points are numbered in execution order, with all branches of a switch laid out
+ * one after the other. The results of all branches stay alive until the end of the switch.
+ * Values used inside a loop but defined before it stay alive until the loop ends. </p>
+ * @author cd4017be */
+public class SlotAllocator {
+
+	private final int[] first, last;
+	private final ArrayList<Loop> loops = new ArrayList<>();
+	private final ArrayList<ScopeBranch> scopes = new ArrayList<>();
+	private final IdentityHashMap<Node, Node> nodes = new IdentityHashMap<>();
+	private int pos;
+
+	private SlotAllocator(int size, int par) {
+		this.first = new int[size];
+		this.last = new int[size];
+		Arrays.fill(first, par + 1, size, Integer.MAX_VALUE);
+		Arrays.fill(last, par + 1, size, -1);
+	}
+
+	/**@param out the function output node
+	 * @param par number of parameters occupying the fixed slots [1...par]
+	 * @param size frame size returned by {@link Node#evalScopes(Node, int)}
+	 * @return the reduced frame size */
+	public static int allocate(Node out, int par, int size) {
+		Vertex ret = out.in[0];
+		ScopeBranch root = (ScopeBranch)ret.scope();
+		SlotAllocator sa = new SlotAllocator(size, par);
+		sa.collect(out);
+		sa.scan(root);
+		sa.use(ret.addr(root.addr), ++sa.pos);
+		int[] map = sa.assign(par);
+		for (Node node : sa.nodes.keySet())
+			if (node.addr > 0) node.addr = map[node.addr];
+		for (ScopeBranch sb : sa.scopes)
+			sb.addr = map[sb.addr];
+		return map[size];
+	}
+
+	private void scan(ScopeBranch sb) {
+		scopes.add(sb);
+		scan(sb.members, sb.addr);
+	}
+
+	private void scan(ArrayList<Node> members, int scope) {
+		for (int i = members.size() - 1; i >= 0; i--) {
+			Node node = members.get(i);
+			collect(node);
+			int p = ++pos;
+			switch(node.mode) {
+				case Node.SWT -> {
+					int out = node.addr(scope);
+					use(node.in[0].addr(scope), p);
+					use(scope, p);
+					def(out, p);
+					for (int j = 1; j < node.in.length; j++)
+						scan((ScopeBranch)node.in[j].scope());
+					//a dynamic switch evaluates all branches before its implementation reads their results
+					int q = ++pos;
+					for (Vertex in : node.in) use(in.addr(scope), q);
+					use(scope, q);
+					def(out, q);
+				}
+				case Node.END -> {
+					Vertex in = node.in[2];
+					ScopeBranch body = (ScopeBranch)in.scope();
+					int out = node.in[0].addr(scope);
+					use(node.in[1].addr(scope), p);
+					def(out, p);
+					def(body.addr, p);
+					//the head is evaluated once before the loop, so its values stay alive throughout
+					scan(body.head, body.addr);
+					Loop loop = new Loop(pos + 1);
+					loops.add(loop);
+					scan(body);
+					loops.remove(loops.size() - 1);
+					int q = ++pos;
+					use(in.addr(scope), q);
+					use(scope, q);
+					def(out, q);
+					for (int s = loop.outer.nextSetBit(0); s >= 0; s = loop.outer.nextSetBit(s + 1))
+						if (last[s] < q) last[s] = q;
+				}
+				default -> {
+					for (Vertex in : node.in) use(in.addr(scope), p);
+					use(scope, p);
+					def(node.addr(scope), p);
+				}
+			}
+		}
+	}
+
+	private void collect(Node node) {
+		if (node == null || nodes.put(node, node) != null) return;
+		for (Vertex v : node.in) collect(v.from);
+	}
+
+	private void def(int s, int p) {
+		if (first[s] > p) first[s] = p;
+		use(s, p);
+	}
+
+	private void use(int s, int p) {
+		for (Loop loop : loops)
+			if (first[s] < loop.start) {
+				loop.outer.set(s);
+				return;
+			}
+		if (last[s] < p) last[s] = p;
+	}
+
+	/**Linear scan over the live intervals.
+	 * @param par parameter slots which keep their index
+	 * @return old slot -> new slot, with the new frame size at [size] */
+	private int[] assign(int par) {
+		int n = first.length;
+		long[] order = new long[n];
+		for (int s = 0; s < n; s++)
+			order[s] = (long)first[s] << 32 | s;
+		Arrays.sort(order);
+		int[] map = new int[n + 1];
+		BitSet free = new BitSet();
+		PriorityQueue<Long> active = new PriorityQueue<>();
+		int size = par + 1;
+		for (long o : order) {
+			int s = (int)o, start = (int)(o >> 32);
+			if (last[s] < 0) continue;
+			while(!active.isEmpty() && active.peek() >> 32 < start) {
+				int slot = (int)(long)active.poll();
+				//address 0 means "same as input" for nodes, so the root scope keeps it
+				if (slot != 0) free.set(slot);
+			}
+			int slot = s <= par ? s : free.nextSetBit(0);
+			if (slot < 0) slot = size++;
+			else free.clear(slot);
+			map[s] = slot;
+			active.add((long)last[s] << 32 | slot);
+		}
+		map[n] = size;
+		return map;
+	}
+
+	private static class Loop {
+		final int start;
+		final BitSet outer = new BitSet();
+
+		Loop(int start) {
+			this.start = start;
+		}
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import cd4017be.dfc.lang.*;
+import cd4017be.dfc.lang.Interpreter.Task;
 import cd4017be.dfc.lang.instructions.ConstantIns;
 import cd4017be.util.Profiler;
 
@@ -58,7 +59,7 @@ public class ConstList implements NodeAssembler, ArgumentParser {
 		return signals().get(name);
 	}
 
-	public void compile(Interpreter ip, Value scope) throws SignalError {
+	public void compile(InterpreterPool ip, Value scope) throws SignalError {
 		Profiler p = new Profiler(System.out);
 		Function f = new Function(def);
 		String[] keys;
@@ -68,7 +69,7 @@ public class ConstList implements NodeAssembler, ArgumentParser {
 		p.end("built");
 		Value[] state = new Value[f.vars.length];
 		state[0] = scope;
-		ip.new Task(def, f.code, state, 1000000, t -> {
+		ip.submit(new Task(def, f.code, state, 1000000, t -> {
 			t.log();
 			if (t.error != null) {
 				t.error.printStackTrace();
@@ -87,7 +88,7 @@ public class ConstList implements NodeAssembler, ArgumentParser {
 					signals.put(keys[i], elem[i]);
 				if (def.isModule()) def.module.reload();
 			}
-		});
+		}));
 	}
 
 	@Override
@@ -2,27 +2,63 @@ package cd4017be.dfc.lang.builders;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import cd4017be.dfc.lang.BlockDef;
 import cd4017be.dfc.lang.BlockDesc;
 import cd4017be.dfc.lang.CircuitFile;
 import cd4017be.dfc.lang.Instruction;
+import cd4017be.dfc.lang.Interpreter;
+import cd4017be.dfc.lang.Module;
 import cd4017be.dfc.lang.Node;
 import cd4017be.dfc.lang.NodeAssembler;
 import cd4017be.dfc.lang.NodeContext;
+import cd4017be.dfc.lang.Optimizer;
 import cd4017be.dfc.lang.ScopeBranch;
 import cd4017be.dfc.lang.SignalError;
+import cd4017be.dfc.lang.SlotAllocator;
+import cd4017be.dfc.lang.Value;
 import cd4017be.dfc.lang.instructions.FunctionIns;
+import cd4017be.dfc.lang.instructions.JitCompiler;
+import cd4017be.dfc.lang.instructions.ParallelIns;
 import cd4017be.util.ExtInputStream;
+import cd4017be.util.IndexedSet;
+import modules.dfc.module.Intrinsics;
 
 /**
  * @author cd4017be */
 public class Function implements NodeAssembler {
+		/** number of calls after which a function gets compiled to bytecode, 0 or less to never compile */
+		public static int JIT_THRESHOLD = Integer.getInteger("dfc.jitThreshold", 1000);
+		/** maximum number of blocks in a function for its calls to be inlined */
+		public static int INLINE_LIMIT = 8;
+
 		public final BlockDef def;
 		public final int par;
 		private MethodHandle intrinsic;
 		public Instruction[] code;
-		public int[] vars;
+		/** frame slot -> block index, null if not compiled */
+		public volatile int[] vars;
+		/** frame size before slot allocation */
+		public int frame;
 		public int ret;
+		private Instruction jit;
+		private int calls;
+		/** whether to run independent calls within a function concurrently, see {@link ParallelIns} */
+		public static boolean PARALLEL = Boolean.getBoolean("dfc.parallel");
+		/** functions that have this one inlined into their code or rely on its {@link #pure} state */
+		private final ArrayList<Function> dependents = new ArrayList<>();
+		private volatile Boolean pure;
+		/** the purity analyses running on each thread */
+		private static final ThreadLocal<Analysis> ANALYSIS = ThreadLocal.withInitial(Analysis::new);
+		/** the parsed circuit, only used as template for {@link CircuitFile#copyCircuit copies} */
+		private volatile IndexedSet<BlockDesc> circuit;
 
 		public Function(BlockDef def) {
 			this.def = def;
@@ -32,36 +68,94 @@ public class Function implements NodeAssembler {
 		public void reset() {
 			this.code = null;
 			this.vars = null;
+			this.jit = null;
+			this.calls = 0;
+			this.pure = null;
+			this.circuit = null;
+			Function[] users;
+			synchronized(dependents) {
+				users = dependents.toArray(Function[]::new);
+				dependents.clear();
+			}
+			for (Function f : users) f.reset();
 		}
 
-		public void define(Node out) throws SignalError {
-			this.vars = new int[Node.evalScopes(out, par + 1)];
+		/**@param out the output node
+		 * @param optimize whether to hoist loop invariants, fuse intrinsic chains, reuse frame slots of dead values
+		 * and (if {@link #PARALLEL}) run independent calls concurrently.
+		 * Otherwise each node keeps its own slot, so its result can be inspected after evaluation.
+		 * Synchronized with {@link #load()}, so concurrent definitions don't mix their code and frame layout.
+		 * @throws SignalError */
+		public synchronized void define(Node out, boolean optimize) throws SignalError {
+			int n = frame = Node.evalScopes(out, par + 1);
 			ScopeBranch sb = (ScopeBranch)out.in[0].scope();
+			if (optimize) {
+				sb.hoistInvariants();
+				if (PARALLEL) sb.parallelize();
+				n = SlotAllocator.allocate(out, par, n);
+			}
+			int[] vars = new int[n];
 			this.ret = out.in[0].addr(sb.addr);
-			this.code = sb.compile(vars);
+			this.code = sb.compile(vars, optimize ? ScopeBranch.FUSE | ScopeBranch.PARALLEL : 0);
+			this.pure = null;
+			this.jit = null;
+			this.calls = 0;
+			//assigned last, so other threads that see it also see the code
+			this.vars = vars;
+		}
+
+		/**Evaluate the function body, switching to compiled code once the function is called frequently.
+		 * @param ip
+		 * @param vars frame with the scope and parameters at [0...par]
+		 * @throws SignalError */
+		public void eval(Interpreter ip, Value[] vars) throws SignalError {
+			Instruction jit = this.jit;
+			if (jit == null && calls >= 0 && JIT_THRESHOLD > 0 && ++calls >= JIT_THRESHOLD) {
+				this.jit = jit = JitCompiler.compile(this);
+				if (jit == null) calls = Integer.MIN_VALUE;
+			}
+			if (jit != null) jit.eval(ip, vars);
+			else ip.eval(code, vars, 0);
 		}
 
 		public String[] compile() throws SignalError {
 			NodeContext cont = new NodeContext(def, false);
-			try (ExtInputStream is = CircuitFile.readBlock(def)) {
-				cont.build(CircuitFile.readCircuit(is, def.module), true);
+			cont.inlineLimit = INLINE_LIMIT;
+			try {
+				cont.build(CircuitFile.copyCircuit(circuit()), true);
 			} catch(IOException e) {
 				throw new SignalError(-1, "can't load circuit", e);
 			}
 			Node out = new Node();
 			String[] outs = cont.collectOutputs(out);
-			define(out);
+			Optimizer.optimize(out);
+			define(out, true);
 			return outs;
 		}
 
+		/**@return the circuit defining this function, read from file only once
+		 * @throws IOException */
+		private IndexedSet<BlockDesc> circuit() throws IOException {
+			IndexedSet<BlockDesc> c = circuit;
+			if (c == null)
+				try (ExtInputStream is = CircuitFile.readBlock(def)) {
+					circuit = c = CircuitFile.readCircuit(is, def.module);
+				}
+			return c;
+		}
+
+		/**Compile the function if not done yet. Only one thread compiles it, others wait for that.
+		 * @throws SignalError */
 		public void load() throws SignalError {
-			synchronized(def) {
+			if (vars != null) return;
+			synchronized(this) {
 				if (vars == null) compile();
 			}
 		}
 
 		@Override
 		public void assemble(BlockDesc block, NodeContext context, int idx) throws SignalError {
+			if (inline(block, context, idx)) return;
 			Node node = new Node(makeVirtual(block.def), Node.INSTR, par, idx);
 			Node[] args = block.getArgNodes(context, idx);
 			for (int i = 0; i < args.length; i++)
@@ -74,6 +168,83 @@ public class Function implements NodeAssembler {
 			else block.makeOuts(node, idx);
 		}
 
+		/**Build this function's circuit directly into the calling context instead of emitting a call.
+		 * All nodes are assigned to the calling block, so errors point there.
+		 * @return whether the call was inlined */
+		private boolean inline(BlockDesc block, NodeContext context, int idx) throws SignalError {
+			if (intrinsic != null) return false;
+			NodeContext cont = context.inlineContext(def, idx);
+			if (cont == null) return false;
+			try {
+				IndexedSet<BlockDesc> blocks = circuit();
+				if (blocks.size() > cont.inlineLimit) return false;
+				cont.build(CircuitFile.copyCircuit(blocks), false);
+			} catch(IOException | SignalError e) {
+				//leave it to the regular call
+				return false;
+			}
+			Node[] params = new Node[par];
+			for (int i = 0; i < par; i++)
+				params[i] = new Node(null, Node.PASS, 1, idx);
+			Node[] args = block.getArgNodes(context, idx);
+			for (int i = 0; i < args.length; i++)
+				params[i].in[0].connect(args[i]);
+			for (int i = 0, j = args.length; i < def.ins.length; i++, j++)
+				block.setIn(i, params[j].in[0], idx);
+			cont.connectParams(params);
+			Node out = new Node();
+			cont.collectOutputs(out);
+			Node res = out.in[0].from();
+			out.in[0].disconnect();
+			if (def.outs.length == 0 && block.args.length != 0)
+				context.getIO(block.args[0]).in[0].connect(res);
+			else block.makeOuts(res, idx);
+			if (cont.root().def.assembler instanceof Function f)
+				addDependent(f);
+			return true;
+		}
+
+		private void addDependent(Function f) {
+			synchronized(dependents) {
+				if (!dependents.contains(f)) dependents.add(f);
+			}
+		}
+
+		/**@param caller function that relies on the result and should be reset along with this one, may be null
+		 * @return whether calls to this function are free of side effects,
+		 * or null if that is not known yet because this function or one it calls isn't loaded yet */
+		public Boolean pure(Function caller) {
+			if (caller != null && caller != this) addDependent(caller);
+			Boolean p = pure;
+			Instruction[] code = this.code;
+			if (p != null || code == null) return p;
+			Analysis a = ANALYSIS.get();
+			int depth = a.stack.indexOf(this);
+			if (depth >= 0) {
+				//recursive call: assume it's pure, the analysis of the called function confirms that
+				a.assumed = Math.min(a.assumed, depth);
+				return true;
+			}
+			depth = a.stack.size();
+			a.stack.add(this);
+			try {
+				p = ParallelIns.pure(code, this);
+			} finally {
+				a.stack.remove(depth);
+			}
+			//side effects are definite, but being pure may rely on an assumption about a caller still being analyzed
+			if (p == Boolean.FALSE || p == Boolean.TRUE && a.assumed >= depth) pure = p;
+			if (a.assumed >= depth) a.assumed = Integer.MAX_VALUE;
+			return p;
+		}
+
+		/**The functions whose purity is being analyzed on the current thread
+		 * and the lowest stack index a recursive call assumed to be pure. */
+		private static class Analysis {
+			final ArrayList<Function> stack = new ArrayList<>();
+			int assumed = Integer.MAX_VALUE;
+		}
+
 		@Override
 		public Instruction makeVirtual(BlockDef def) {
 			if (intrinsic != null) try {
@@ -94,4 +265,52 @@ public class Function implements NodeAssembler {
 			return intrinsic == null;
 		}
 
-	}
\ No newline at end of file
+		/**Compile all functions of a module and the modules it imports that aren't compiled yet,
+		 * concurrently on the common fork-join pool.
+		 * @param m
+		 * @return the compile time and error of each function */
+		public static List<Compiled> precompile(Module m) {
+			ArrayList<Callable<Compiled>> tasks = new ArrayList<>();
+			collect(m, new HashSet<>(), tasks);
+			ArrayList<Compiled> res = new ArrayList<>(tasks.size());
+			for (Future<Compiled> f : ForkJoinPool.commonPool().invokeAll(tasks))
+				try {
+					res.add(f.get());
+				} catch(InterruptedException | ExecutionException e) {
+					throw new IllegalStateException(e);
+				}
+			return res;
+		}
+
+		private static void collect(Module m, HashSet<Module> visited, ArrayList<Callable<Compiled>> tasks) {
+			if (!visited.add(m)) return;
+			for (Entry<String, Value> e : m.data().entrySet())
+				if (
+					e.getValue().type == Intrinsics.BLOCK
+					&& m.getBlock(e.getKey()).defined().assembler instanceof Function f
+					&& f.hasCircuit() && f.vars == null
+				) tasks.add(() -> {
+					long t = System.nanoTime();
+					SignalError err = null;
+					try {
+						f.load();
+					} catch(SignalError ex) {
+						err = ex;
+					}
+					return new Compiled(f, System.nanoTime() - t, err);
+				});
+			for (Module i : m.loadPalettes().imports.values())
+				collect(i, visited, tasks);
+		}
+
+		/**@param func the compiled function
+		 * @param time compile time in ns
+		 * @param error the reason compilation failed or null */
+		public record Compiled(Function func, long time, SignalError error) {
+			public void log() {
+				if (error == null) System.out.printf("compiled %s in %d µs\n", func.def, time / 1000);
+				else System.out.printf("failed to compile %s after %d µs: %s\n", func.def, time / 1000, error.getMessage());
+			}
+		}
+
+	}
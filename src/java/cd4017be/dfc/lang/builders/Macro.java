@@ -6,6 +6,7 @@ import static java.lang.Math.min;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import cd4017be.dfc.lang.*;
 import cd4017be.dfc.lang.Node.Vertex;
 import cd4017be.dfc.lang.instructions.PackIns;
@@ -13,26 +14,31 @@ import cd4017be.dfc.lang.instructions.UnpackIns;
 import cd4017be.util.IndexedSet;
 
 
-/**
- * 
+/**Expands its circuit into the calling context.
+ * The macro only holds the loaded circuit as template and each expansion builds a copy of it
+ * into its own {@link Expansion} context, so the same macro can be assembled by several threads at once.
  * @author CD4017BE */
-public class Macro extends NodeContext implements NodeAssembler, ArgumentParser {
+public class Macro implements NodeAssembler, ArgumentParser {
 
+	/** macros currently being expanded by each thread, to detect recursion */
+	private static final ThreadLocal<ArrayList<Macro>> EXPANDING = ThreadLocal.withInitial(ArrayList::new);
+
+	public final BlockDef def;
 	private final int[] argUsers;
-	private IndexedSet<BlockDesc> blocks;
-	private NodeContext parent;
-	private String[] extArgs;
+	/** the parsed circuit, only used as template for {@link CircuitFile#copyCircuit copies} */
+	private volatile IndexedSet<BlockDesc> blocks;
 
 	public Macro(BlockDef def) {
-		super(def, false);
+		this.def = def;
 		this.argUsers = new int[def.args.length];
 		Arrays.fill(argUsers, -1);
 	}
 
-	private void ensureLoaded() throws IOException {
-		if (blocks != null) return;
-		synchronized(def) {
-			if (blocks != null) return;
+	private IndexedSet<BlockDesc> ensureLoaded() throws IOException {
+		IndexedSet<BlockDesc> blocks = this.blocks;
+		if (blocks != null) return blocks;
+		synchronized(argUsers) {
+			if ((blocks = this.blocks) != null) return blocks;
 			blocks = CircuitFile.readCircuit(CircuitFile.readBlock(def), def.module);
 			args: for (int i = 0; i < argUsers.length; i++) {
 				String name = def.args[i];
@@ -46,11 +52,11 @@ public class Macro extends NodeContext implements NodeAssembler, ArgumentParser
 				}
 				argUsers[i] = -1;
 			}
+			return this.blocks = blocks;
 		}
 	}
 
-	@Override
-	public String[] args(BlockDesc block) {
+	private String[] args(BlockDesc block, String[] extArgs) {
 		String[] args = block.args, names = def.args;
 		if (names.length == 0) return args;
 		int[] idx = null;
@@ -82,16 +88,19 @@ public class Macro extends NodeContext implements NodeAssembler, ArgumentParser
 
 	@Override
 	public void assemble(BlockDesc block, NodeContext context, int idx) throws SignalError {
+		IndexedSet<BlockDesc> blocks;
 		try {
-			ensureLoaded();
+			blocks = ensureLoaded();
 		} catch(IOException e) {
 			throw new SignalError(idx, "can't load macro: " + e.getMessage(), e);
 		}
-		if (parent != null) throw new SignalError(idx, "illegal recursive macro");
+		ArrayList<Macro> expanding = EXPANDING.get();
+		if (expanding.contains(this)) throw new SignalError(idx, "illegal recursive macro");
+		expanding.add(this);
 		try {
-			this.parent = context;
-			this.extArgs = context.args(block);
-			build(blocks, false);
+			Expansion exp = new Expansion(context, context.args(block));
+			exp.build(CircuitFile.copyCircuit(blocks), false);
+			HashMap<String, Node> links = exp.links;
 			String[] names;
 			int j = (names = def.ins).length;
 			for (int i = 0, l = min(j, block.ins()); i < l; i++) {
@@ -134,30 +143,30 @@ public class Macro extends NodeContext implements NodeAssembler, ArgumentParser
 				}
 			}
 		} finally {
-			parent = null;
-			extArgs = null;
-			links.clear();
+			expanding.remove(expanding.size() - 1);
 		}
 	}
 
 	@Override
 	public void
 	getAutoCompletions(BlockDesc block, int arg, ArrayList<String> list, NodeContext context) {
+		IndexedSet<BlockDesc> blocks;
 		try {
-			ensureLoaded();
+			blocks = ensureLoaded();
 		} catch(IOException e) {
 			return;
 		}
-		if ((arg = min(arg, argUsers.length - 1)) < 0 || parent != null) return;
+		ArrayList<Macro> expanding = EXPANDING.get();
+		if ((arg = min(arg, argUsers.length - 1)) < 0 || expanding.contains(this)) return;
+		expanding.add(this);
 		try {
-			this.parent = context;
 			int i = argUsers[arg];
 			if (i >= 0) {
 				block = blocks.get(i & 0xffff);
 				block.parser(i >> 16).getAutoCompletions(block, i >> 16, list, context);
 			}
 		} finally {
-			this.parent = null;
+			expanding.remove(expanding.size() - 1);
 		}
 	}
 
@@ -173,4 +182,27 @@ public class Macro extends NodeContext implements NodeAssembler, ArgumentParser
 		return true;
 	}
 
+	/**The context of a single expansion, holding the links and arguments of that call site.
+	 * @author cd4017be */
+	private class Expansion extends NodeContext {
+		final NodeContext parent;
+		final String[] extArgs;
+
+		Expansion(NodeContext parent, String[] extArgs) {
+			super(Macro.this.def, false);
+			this.parent = parent;
+			this.extArgs = extArgs;
+		}
+
+		@Override
+		public String[] args(BlockDesc block) {
+			return Macro.this.args(block, extArgs);
+		}
+
+		@Override
+		public NodeContext inlineContext(BlockDef def, int idx) {
+			return parent.inlineContext(def, idx);
+		}
+	}
+
 }
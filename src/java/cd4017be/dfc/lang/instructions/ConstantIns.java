@@ -10,18 +10,22 @@ import cd4017be.dfc.lang.Value;
  * @author cd4017be */
 public class ConstantIns extends Instruction {
 
-	private final Value val;
-	private int out;
+	final Value val;
+	final int out;
 
 	public ConstantIns(Value val) {
+		this(val, 0);
+	}
+
+	private ConstantIns(Value val, int out) {
 		this.val = val;
+		this.out = out;
 	}
 
 	@Override
 	public Instruction setIO(int[] io) throws SignalError {
 		checkIO(io, 2);
-		this.out = io[0];
-		return this;
+		return new ConstantIns(val, io[0]);
 	}
 
 	@Override
@@ -29,6 +33,15 @@ public class ConstantIns extends Instruction {
 		vars[out] = val;
 	}
 
+	@Override
+	public Object pureOp() {
+		return val;
+	}
+
+	public Value value() {
+		return val;
+	}
+
 	public static Node node(Value val, int idx) {
 		return new Node(new ConstantIns(val), Node.INSTR, 0, idx);
 	}
@@ -10,32 +10,49 @@ import cd4017be.dfc.lang.builders.Function;
  * @author cd4017be */
 public class FunctionIns extends Instruction {
 
-	private final Function func;
-	private int[] io;
+	final Function func;
+	final int[] io;
 
 	public FunctionIns(Function func) {
+		this(func, null);
+	}
+
+	private FunctionIns(Function func, int[] io) {
 		this.func = func;
+		this.io = io;
+	}
+
+	/**@return the called function */
+	public Function function() {
+		return func;
 	}
 
 	@Override
 	public Instruction setIO(int[] io) throws SignalError {
 		checkIO(io, func.par + 2);
-		this.io = io;
-		return this;
+		return new FunctionIns(func, io);
 	}
 
 	@Override
 	public void eval(Interpreter ip, Value[] vars) throws SignalError {
+		if (func.vars == null) try {
+			func.load();
+		} catch (SignalError e) {
+			e.pos = ~io[0];
+			throw e;
+		}
+		int n = func.vars.length;
+		Value[] vars1 = ip.push(n);
 		try {
-			if (func.vars == null) func.load();
-			Value[] vars1 = new Value[func.vars.length];
 			for (int i = 1; i < io.length; i++)
 				vars1[i - 1] = vars[io[i]];
-			ip.eval(func.code, vars1, 0);
+			func.eval(ip, vars1);
 			vars[io[0]] = vars1[func.ret];
 		} catch (SignalError e) {
 			e.pos = ~io[0];
 			throw e;
+		} finally {
+			ip.pop(vars1, n);
 		}
 	}
 
@@ -0,0 +1,217 @@
+package cd4017be.dfc.lang.instructions;
+
+import static cd4017be.dfc.lang.instructions.IntrinsicLoader.*;
+import static java.lang.invoke.MethodType.methodType;
+import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+import static org.objectweb.asm.Opcodes.*;
+import static org.objectweb.asm.Type.getDescriptor;
+import static org.objectweb.asm.Type.getInternalName;
+import static org.objectweb.asm.Type.getMethodDescriptor;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import cd4017be.dfc.lang.Instruction;
+import cd4017be.dfc.lang.Interpreter;
+import cd4017be.dfc.lang.SignalError;
+import cd4017be.dfc.lang.Type;
+import cd4017be.dfc.lang.Value;
+import cd4017be.dfc.lang.instructions.IntrinsicLoader.Impl;
+
+/**Superinstruction that evaluates a straight-line chain of intrinsics in one go.
+ * Numeric results are passed between the chain members in JVM local variables
+ * and only boxed into a {@link Value} if they are needed outside the chain.
+ * @author cd4017be */
+public abstract class FusedIns extends Instruction {
+
+	/** maximum number of instructions per chain, to keep the generated methods small */
+	public static final int MAX_CHAIN = 64;
+	private static final String
+	T_FUSED = getInternalName(FusedIns.class),
+	T_VALUE = getInternalName(Value.class),
+	T_DOUBLE = getInternalName(Double.class),
+	T_SIGNALERROR = getInternalName(SignalError.class),
+	T_RUNTIMEEXCEPTION = getInternalName(RuntimeException.class),
+	D_PARTS = getDescriptor(IntrinsicIns[].class),
+	D_EVAL = "(" + getDescriptor(Interpreter.class) + getDescriptor(Value[].class) + ")V",
+	D_OFVALUE = "(J" + getDescriptor(Type.class) + ")" + getDescriptor(Value.class),
+	D_NEWSIGNALERROR = "(I" + getDescriptor(String.class) + getDescriptor(Throwable.class) + ")V";
+
+	final IntrinsicIns[] parts;
+
+	FusedIns(IntrinsicIns[] parts) {
+		this.parts = parts;
+	}
+
+	@Override
+	public Instruction setIO(int[] io) throws SignalError {
+		throw new SignalError(~io[0], "can't dynamically call fused instructions");
+	}
+
+	/**@param ins
+	 * @return whether the given instruction can be part of a fused chain */
+	public static boolean fusable(Instruction ins) {
+		return ins instanceof IntrinsicIns;
+	}
+
+	/**@param chain instructions to evaluate in sequence, all {@link #fusable(Instruction) fusable}
+	 * @param keep whether the result of each instruction is read by anything outside the chain
+	 * @return a single instruction equivalent to the chain or null if it can't be compiled */
+	public static Instruction fuse(Instruction[] chain, boolean[] keep) {
+		IntrinsicIns[] parts = new IntrinsicIns[chain.length];
+		for (int i = 0; i < parts.length; i++)
+			parts[i] = (IntrinsicIns)chain[i];
+		try {
+			ClassWriter cw = new ClassWriter(COMPUTE_MAXS | COMPUTE_FRAMES);
+			cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, T_FUSED + "$CHAIN", null, T_FUSED, null);
+			cw.visitSource("FusedIns.java", null);
+			MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(" + D_PARTS + ")V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitMethodInsn(INVOKESPECIAL, T_FUSED, "<init>", "(" + D_PARTS + ")V", false);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			new Chain(cw.visitMethod(ACC_PUBLIC, "eval", D_EVAL, null, EX_SIGNALERROR)).compile(parts, keep);
+			cw.visitEnd();
+			Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
+			return (Instruction)lookup.findConstructor(lookup.lookupClass(), methodType(void.class, IntrinsicIns[].class))
+			.invoke(parts);
+		} catch (Throwable e) {
+			System.err.printf("failed to fuse %d instructions : %s\n", parts.length, e);
+			return null;
+		}
+	}
+
+	/**Code generator for the eval method.
+	 * Local 3 holds caught exceptions and the unboxed results start at local 4.
+	 * @author cd4017be */
+	private static class Chain {
+		final MethodVisitor mv;
+		/** frame slot -> unboxed value currently assigned to it */
+		final HashMap<Integer, Unboxed> unboxed = new HashMap<>();
+		int locals = 4;
+
+		Chain(MethodVisitor mv) {
+			this.mv = mv;
+		}
+
+		void compile(IntrinsicIns[] parts, boolean[] keep) {
+			mv.visitCode();
+			for (int i = 0; i < parts.length; i++)
+				part(parts[i], keep[i]);
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+
+		private void part(IntrinsicIns ins, boolean keep) {
+			Method m = ins.method;
+			Impl an = ins.impl;
+			int[] io = ins.io;
+			Class<?>[] types = m.getParameterTypes();
+			Class<?> rt = m.getReturnType();
+			int j = 0, out = io[0];
+			boolean prim = !an.outType().isEmpty() && (rt == long.class || rt == int.class || rt == double.class);
+			Label start = new Label(), end = new Label(), handler = new Label(), next = new Label();
+			mv.visitTryCatchBlock(start, end, handler, T_RUNTIMEEXCEPTION);
+			mv.visitLabel(start);
+			if (!prim) {
+				mv.visitVarInsn(ALOAD, 2);
+				bconst(mv, out);
+			}
+			if (an.useIp()) {
+				mv.visitVarInsn(ALOAD, 1);
+				j++;
+			}
+			if (an.useScope()) arg(io[1], types[j++]);
+			for (int i = 0; i < an.inputs(); i++)
+				arg(io[i + 2], types[j++]);
+			mv.visitMethodInsn(INVOKESTATIC, getInternalName(m.getDeclaringClass()), m.getName(), getMethodDescriptor(m), false);
+			if (prim) {
+				if (rt == int.class) mv.visitInsn(I2L);
+				else if (rt == double.class)
+					mv.visitMethodInsn(INVOKESTATIC, T_DOUBLE, "doubleToRawLongBits", "(D)J", false);
+				Unboxed u = new Unboxed(locals, m.getDeclaringClass(), an.outType());
+				locals += 2;
+				mv.visitVarInsn(LSTORE, u.local);
+				unboxed.put(out, u);
+				if (keep) u.writeBack(out);
+			} else {
+				if (rt == void.class && an.outType().isEmpty()) {
+					mv.visitVarInsn(ALOAD, 2);
+					bconst(mv, io[2]);
+					mv.visitInsn(AALOAD);
+				} else box(mv, m, an.outType());
+				mv.visitInsn(AASTORE);
+				unboxed.remove(out);
+			}
+			mv.visitLabel(end);
+			mv.visitJumpInsn(GOTO, next);
+			mv.visitLabel(handler);
+			mv.visitVarInsn(ASTORE, 3);
+			mv.visitTypeInsn(NEW, T_SIGNALERROR);
+			mv.visitInsn(DUP);
+			bconst(mv, out);
+			mv.visitInsn(ACONST_NULL);
+			mv.visitVarInsn(ALOAD, 3);
+			mv.visitMethodInsn(INVOKESPECIAL, T_SIGNALERROR, "<init>", D_NEWSIGNALERROR, false);
+			mv.visitInsn(ATHROW);
+			mv.visitLabel(next);
+		}
+
+		/** -> (type) */
+		private void arg(int slot, Class<?> type) {
+			Unboxed u = unboxed.get(slot);
+			if (u == null);
+			else if (type == long.class) {
+				mv.visitVarInsn(LLOAD, u.local);
+				return;
+			} else if (type == int.class) {
+				mv.visitVarInsn(LLOAD, u.local);
+				mv.visitInsn(L2I);
+				return;
+			} else if (type == double.class) {
+				mv.visitVarInsn(LLOAD, u.local);
+				mv.visitMethodInsn(INVOKESTATIC, T_DOUBLE, "longBitsToDouble", "(J)D", false);
+				return;
+			} else if (!u.boxed) u.writeBack(slot);
+			mv.visitVarInsn(ALOAD, 2);
+			bconst(mv, slot);
+			mv.visitInsn(AALOAD);
+			unbox(mv, type);
+		}
+
+		/**A numeric result held in a long local variable.
+		 * @author cd4017be */
+		private class Unboxed {
+			final int local;
+			final Class<?> owner;
+			final String type;
+			/** whether the value has also been written to the frame */
+			boolean boxed;
+
+			Unboxed(int local, Class<?> owner, String type) {
+				this.local = local;
+				this.owner = owner;
+				this.type = type;
+			}
+
+			void writeBack(int slot) {
+				mv.visitVarInsn(ALOAD, 2);
+				bconst(mv, slot);
+				mv.visitVarInsn(LLOAD, local);
+				mv.visitFieldInsn(GETSTATIC, getInternalName(owner), type, getDescriptor(Type.class));
+				mv.visitMethodInsn(INVOKESTATIC, T_VALUE, "of", D_OFVALUE, false);
+				mv.visitInsn(AASTORE);
+				boxed = true;
+			}
+		}
+	}
+
+}
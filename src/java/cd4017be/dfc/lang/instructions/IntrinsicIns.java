@@ -0,0 +1,28 @@
+package cd4017be.dfc.lang.instructions;
+
+import java.lang.reflect.Method;
+import cd4017be.dfc.lang.Instruction;
+import cd4017be.dfc.lang.instructions.IntrinsicLoader.Impl;
+
+/**Super class of the instructions generated by {@link IntrinsicLoader}.
+ * Remembers the implementing method, so {@link JitCompiler} can call it directly.
+ * @author cd4017be */
+abstract class IntrinsicIns extends Instruction {
+
+	final Method method;
+	final Impl impl;
+	/** the bound frame slots, null for the template */
+	final int[] io;
+
+	IntrinsicIns(Method method, Impl impl, int[] io) {
+		this.method = method;
+		this.impl = impl;
+		this.io = io;
+	}
+
+	@Override
+	public Object pureOp() {
+		return impl.pure() && !impl.useIp() && !impl.useScope() ? method : null;
+	}
+
+}
@@ -57,6 +57,11 @@ public class IntrinsicLoader {
 		/**@return the name of a public static {@link Type} field within the current class
 		 * that provides the output value's {@link Value#type} if the method's return type is not {@link Value}. */
 		String outType() default "";
+		/**@return whether the method's result only depends on its inputs and it has no side effects,
+		 * so calls with constant inputs can be evaluated at compile time and calls with equal inputs merged or moved.
+		 * Methods that read the content of input arrays are not pure, because other operations can modify it in place.
+		 * Neither are methods that return newly allocated arrays, because the result could be modified later. */
+		boolean pure() default false;
 	}
 
 	/**Annotation for public static methods that perform initialization tasks for a module.
@@ -69,12 +74,14 @@ public class IntrinsicLoader {
 	private static final String
 	T_IMPL = getInternalName(IntrinsicLoader.class) + "$IMPL",
 	T_INSTRUCTION = getInternalName(Instruction.class),
+	T_INTRINSIC = getInternalName(IntrinsicIns.class),
 	T_VALUE = getInternalName(Value.class),
 	T_INTERPRETER = getInternalName(Interpreter.class),
 	T_DOUBLE = getInternalName(Double.class),
 	T_SIGNALERROR = getInternalName(SignalError.class),
 	T_RUNTIMEEXCEPTION = getInternalName(RuntimeException.class),
 	D_SETIO = "([I)L" + T_INSTRUCTION + ";",
+	D_INIT = "(" + getDescriptor(Method.class) + getDescriptor(Impl.class) + "[I)V",
 	D_CHECKIO = "([II)V",
 	D_EVAL = "(L" + T_INTERPRETER + ";[L" + T_VALUE + ";)V",
 	D_TYPE = getDescriptor(Type.class),
@@ -85,35 +92,48 @@ public class IntrinsicLoader {
 	D_OFDATA = "(" + D_DATA + D_TYPE + ")L" + T_VALUE + ";",
 	D_OFVALUE = "(J" + D_TYPE + ")L" + T_VALUE + ";",
 	D_NEWSIGNALERROR = "(I" + getDescriptor(String.class) + getDescriptor(Throwable.class) + ")V";
-	private static final String[] EX_SIGNALERROR = {T_SIGNALERROR};
+	static final String[] EX_SIGNALERROR = {T_SIGNALERROR};
 
 	public static MethodHandle linkIntrinsic(Method m, Impl an) {
 		check(m, an);
 		ClassWriter cw = new ClassWriter(COMPUTE_MAXS | COMPUTE_FRAMES);
-		cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, T_IMPL, null, T_INSTRUCTION, null);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, T_IMPL, null, T_INTRINSIC, null);
 		cw.visitSource("IntrinsicLoader.java", null);
 		addIdxField(cw, "o");
 		if (an.useScope())
 			addIdxField(cw, "s");
 		for (int i = 0; i < an.inputs(); i++)
 			addIdxField(cw, "i" + i);
-		addConstructor(cw);
+		addConstructor(cw, an);
 		addSetIO(cw, an);
 		addEval(cw, m, an);
 		cw.visitEnd();
 		try {
 			Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
-			return lookup.findConstructor(lookup.lookupClass(), methodType(void.class));
+			MethodHandle ctr = lookup.findConstructor(lookup.lookupClass(), methodType(void.class, Method.class, Impl.class, int[].class));
+			//the template isn't bound to any slots
+			return MethodHandles.insertArguments(ctr, 0, m, an, null);
 		} catch (IllegalAccessException | NoSuchMethodException e) {
 			throw new IllegalStateException(e);
 		}
 	}
 
-	private static void addConstructor(ClassWriter cw) {
-		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+	private static void addConstructor(ClassWriter cw, Impl an) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", D_INIT, null, null);
 		mv.visitCode();
 		mv.visitVarInsn(ALOAD, 0);
-		mv.visitMethodInsn(INVOKESPECIAL, T_INSTRUCTION, "<init>", "()V", false);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitVarInsn(ALOAD, 3);
+		mv.visitMethodInsn(INVOKESPECIAL, T_INTRINSIC, "<init>", D_INIT, false);
+		//io is null for the template
+		Label unbound = new Label();
+		mv.visitVarInsn(ALOAD, 3);
+		mv.visitJumpInsn(IFNULL, unbound);
+		setIdxField(mv, "o", 0);
+		if (an.useScope()) setIdxField(mv, "s", 1);
+		for (int i = 0; i < an.inputs(); i++) setIdxField(mv, "i" + i, i + 2);
+		mv.visitLabel(unbound);
 		mv.visitInsn(RETURN);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
@@ -127,19 +147,23 @@ public class IntrinsicLoader {
 			throw new IllegalArgumentException("wrong number of parameters");
 	}
 
-	private static void bconst(MethodVisitor mv, int i) {
+	static void bconst(MethodVisitor mv, int i) {
 		if (i >= -1 && i <= 5)
 			mv.visitInsn(ICONST_0 + i);
-		else mv.visitIntInsn(BIPUSH, i);
+		else if (i == (byte)i)
+			mv.visitIntInsn(BIPUSH, i);
+		else if (i == (short)i)
+			mv.visitIntInsn(SIPUSH, i);
+		else mv.visitLdcInsn(i);
 	}
 
 	private static void addIdxField(ClassWriter cw, String name) {
-		cw.visitField(ACC_PRIVATE, name, "I", null, null);
+		cw.visitField(ACC_PRIVATE | ACC_FINAL, name, "I", null, null);
 	}
 
 	private static void setIdxField(MethodVisitor mv, String name, int idx) {
 		mv.visitVarInsn(ALOAD, 0);//this
-		mv.visitVarInsn(ALOAD, 1);//int[] io
+		mv.visitVarInsn(ALOAD, 3);//int[] io
 		bconst(mv, idx);
 		mv.visitInsn(IALOAD);//io[idx]
 		mv.visitFieldInsn(PUTFIELD, T_IMPL, name, "I");
@@ -151,10 +175,15 @@ public class IntrinsicLoader {
 		mv.visitVarInsn(ALOAD, 1);
 		bconst(mv, an.inputs() + 2);
 		mv.visitMethodInsn(INVOKESTATIC, T_INSTRUCTION, "checkIO", D_CHECKIO, false);
-		setIdxField(mv, "o", 0);
-		if (an.useScope()) setIdxField(mv, "s", 1);
-		for (int i = 0; i < an.inputs(); i++) setIdxField(mv, "i" + i, i + 2);
+		//the template stays unchanged, the slots are stored in a new instance
+		mv.visitTypeInsn(NEW, T_IMPL);
+		mv.visitInsn(DUP);
 		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, T_INTRINSIC, "method", getDescriptor(Method.class));
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, T_INTRINSIC, "impl", getDescriptor(Impl.class));
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESPECIAL, T_IMPL, "<init>", D_INIT, false);
 		mv.visitInsn(ARETURN);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
@@ -174,6 +203,13 @@ public class IntrinsicLoader {
 	 * @param type */
 	private static void load(MethodVisitor mv, Class<?> type) {
 		mv.visitInsn(AALOAD);
+		unbox(mv, type);
+	}
+
+	/**Value -> (type)
+	 * @param mv
+	 * @param type */
+	static void unbox(MethodVisitor mv, Class<?> type) {
 		if (type == Value.class);
 		else if (type == Type.class)
 			mv.visitFieldInsn(GETFIELD, T_VALUE, "type", D_TYPE);
@@ -197,13 +233,22 @@ public class IntrinsicLoader {
 	 * @param m
 	 * @param out */
 	private static void store(MethodVisitor mv, Method m, String out) {
+		if (m.getReturnType() == void.class && out.isEmpty()) {
+			indexIO(mv, "i0");
+			mv.visitInsn(AALOAD);
+		} else box(mv, m, out);
+		mv.visitInsn(AASTORE);
+	}
+
+	/**x -> Value
+	 * @param mv
+	 * @param m
+	 * @param out */
+	static void box(MethodVisitor mv, Method m, String out) {
 		Class<?> type = m.getReturnType();
 		if (type == Value.class);
 		else if (type == void.class)
-			if (out.isEmpty()) {
-				indexIO(mv, "i0");
-				mv.visitInsn(AALOAD);
-			} else newValue(mv, m, out, D_OF);
+			newValue(mv, m, out, D_OF);
 		else if (type == Type.class)
 			mv.visitMethodInsn(INVOKESTATIC, T_VALUE, "of", D_OF, false);
 		else if (type == Value[].class)
@@ -219,7 +264,6 @@ public class IntrinsicLoader {
 			mv.visitInsn(I2L);
 			newValue(mv, m, out, D_OFVALUE);
 		} else throw new IllegalArgumentException("unsupported output type: " + type);
-		mv.visitInsn(AASTORE);
 	}
 
 	/** x -> Value
@@ -247,30 +291,30 @@ public class IntrinsicLoader {
 		Label start = new Label(), end = new Label();
 		mv.visitTryCatchBlock(start, end, end, T_RUNTIMEEXCEPTION);
 		mv.visitLabel(start);
-		line(mv, 249);
+		line(mv, 294);
 		indexIO(mv, "o");
 		if (an.useIp())
 			if (types[j++] == Interpreter.class) {
-				line(mv, 252);
+				line(mv, 298);
 				mv.visitVarInsn(ALOAD, 1);
 			} else throw new IllegalArgumentException("wrong parameter type for interpreter");
 		if (an.useScope()) {
-			line(mv, 257);
+			line(mv, 302);
 			indexIO(mv, "s");
 			load(mv, types[j++]);
 		}
-		line(mv, 262);
+		line(mv, 306);
 		for (int i = 0; i < an.inputs(); i++) {
 			indexIO(mv, "i" + i);
 			load(mv, types[j++]);
 		}
-		line(mv, 266);
+		line(mv, 311);
 		mv.visitMethodInsn(INVOKESTATIC, getInternalName(m.getDeclaringClass()), m.getName(), getMethodDescriptor(m), false);
-		line(mv, 268);
+		line(mv, 313);
 		store(mv, m, an.outType());
 		mv.visitInsn(RETURN);
 		mv.visitLabel(end);
-		line(mv, 272);
+		line(mv, 317);
 		throwBlock(mv);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
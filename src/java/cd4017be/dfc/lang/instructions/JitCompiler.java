@@ -0,0 +1,368 @@
+package cd4017be.dfc.lang.instructions;
+
+import static cd4017be.dfc.lang.instructions.IntrinsicLoader.*;
+import static java.lang.invoke.MethodType.methodType;
+import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+import static org.objectweb.asm.Opcodes.*;
+import static org.objectweb.asm.Type.getDescriptor;
+import static org.objectweb.asm.Type.getInternalName;
+import static org.objectweb.asm.Type.getMethodDescriptor;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import cd4017be.dfc.lang.Instruction;
+import cd4017be.dfc.lang.Interpreter;
+import cd4017be.dfc.lang.SignalError;
+import cd4017be.dfc.lang.Type;
+import cd4017be.dfc.lang.Value;
+import cd4017be.dfc.lang.builders.Function;
+import cd4017be.dfc.lang.instructions.IntrinsicLoader.Impl;
+import modules.dfc.module.Intrinsics;
+
+/**Second execution tier for frequently called functions:
+ * translates the interpreted {@link Function#code} into a single hidden class
+ * that keeps all frame slots in JVM local variables, calls intrinsic methods directly
+ * and turns {@link SwitchIns} and {@link LoopIns} into native branches.
+ * Instructions it doesn't know about are simply evaluated through their generic {@link Instruction} implementation.
+ * @author cd4017be */
+public class JitCompiler {
+
+	private static final boolean DEBUG = false;
+	private static final String
+	T_JIT = getInternalName(JitCompiler.class) + "$JIT",
+	T_INSTRUCTION = getInternalName(Instruction.class),
+	T_INTERPRETER = getInternalName(Interpreter.class),
+	T_VALUE = getInternalName(Value.class),
+	T_SIGNALERROR = getInternalName(SignalError.class),
+	T_RUNTIMEEXCEPTION = getInternalName(RuntimeException.class),
+	D_VALUE = getDescriptor(Value.class),
+	D_INSTRUCTION = getDescriptor(Instruction.class),
+	D_ELEMENTS = getDescriptor(Value[].class),
+	D_EVAL = "(L" + T_INTERPRETER + ";[" + D_VALUE + ")V",
+	D_SETIO = "([I)" + D_INSTRUCTION,
+	D_INIT = "([Ljava/lang/Object;)V",
+	D_NEWSIGNALERROR = "(ILjava/lang/String;)V",
+	D_NEWSIGNALERROR1 = "(ILjava/lang/String;Ljava/lang/Throwable;)V";
+
+	private final ClassWriter cw;
+	private final MethodVisitor mv;
+	private final ArrayList<Object> consts = new ArrayList<>();
+	private final ArrayList<String> constTypes = new ArrayList<>();
+	/** number of frame slots and local variable index of the exception temporary */
+	private final int slots, tmp;
+
+	private JitCompiler(int slots) {
+		this.slots = slots;
+		this.tmp = slots + 3;
+		this.cw = new ClassWriter(COMPUTE_MAXS | COMPUTE_FRAMES);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, T_JIT, null, T_INSTRUCTION, null);
+		cw.visitSource("JitCompiler.java", null);
+		this.mv = cw.visitMethod(ACC_PUBLIC, "eval", D_EVAL, null, EX_SIGNALERROR);
+	}
+
+	/**@param func a loaded function
+	 * @return an instruction that evaluates the function body on the same frame layout as {@link Function#code}
+	 * or null if the function can't be compiled. */
+	public static Instruction compile(Function func) {
+		try {
+			JitCompiler jc = new JitCompiler(func.vars.length);
+			jc.addEval(func);
+			jc.addSetIO();
+			jc.addConstructor();
+			jc.cw.visitEnd();
+			Lookup lookup = MethodHandles.lookup().defineHiddenClass(jc.cw.toByteArray(), true);
+			Instruction ins = (Instruction)lookup.findConstructor(lookup.lookupClass(), methodType(void.class, Object[].class))
+			.invoke(jc.consts.toArray());
+			if (DEBUG) System.out.printf("compiled %s with %d constants\n", func.def, jc.consts.size());
+			return ins;
+		} catch (Throwable e) {
+			System.err.printf("failed to compile %s : %s\n", func.def, e);
+			return null;
+		}
+	}
+
+	private void addEval(Function func) {
+		mv.visitCode();
+		for (int i = 0; i < slots; i++) {
+			if (i <= func.par) {
+				mv.visitVarInsn(ALOAD, 2);
+				bconst(mv, i);
+				mv.visitInsn(AALOAD);
+			} else mv.visitInsn(ACONST_NULL);
+			mv.visitVarInsn(ASTORE, i + 3);
+		}
+		block(func.code, 0);
+		spill(func.ret);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void addSetIO() {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "setIO", D_SETIO, null, EX_SIGNALERROR);
+		mv.visitCode();
+		mv.visitTypeInsn(NEW, T_SIGNALERROR);
+		mv.visitInsn(DUP);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IALOAD);
+		mv.visitInsn(ICONST_M1);
+		mv.visitInsn(IXOR);
+		mv.visitLdcInsn("can't dynamically call compiled function");
+		mv.visitMethodInsn(INVOKESPECIAL, T_SIGNALERROR, "<init>", D_NEWSIGNALERROR, false);
+		mv.visitInsn(ATHROW);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void addConstructor() {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", D_INIT, null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, T_INSTRUCTION, "<init>", "()V", false);
+		for (int i = 0; i < consts.size(); i++) {
+			String desc = constTypes.get(i);
+			cw.visitField(ACC_PRIVATE | ACC_FINAL, "c" + i, desc, null, null);
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ALOAD, 1);
+			bconst(mv, i);
+			mv.visitInsn(AALOAD);
+			mv.visitTypeInsn(CHECKCAST, desc.substring(1, desc.length() - 1));
+			mv.visitFieldInsn(PUTFIELD, T_JIT, "c" + i, desc);
+		}
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/** -> constant
+	 * @param c the constant
+	 * @param desc its field descriptor */
+	private void constant(Object c, String desc) {
+		int i = consts.size();
+		consts.add(c);
+		constTypes.add(desc);
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitFieldInsn(GETFIELD, T_JIT, "c" + i, desc);
+	}
+
+	/** -> Value */
+	private void load(int slot) {
+		mv.visitVarInsn(ALOAD, slot + 3);
+	}
+
+	/** Value -> */
+	private void store(int slot) {
+		mv.visitVarInsn(ASTORE, slot + 3);
+	}
+
+	/**write a local back into the frame array */
+	private void spill(int slot) {
+		mv.visitVarInsn(ALOAD, 2);
+		bconst(mv, slot);
+		load(slot);
+		mv.visitInsn(AASTORE);
+	}
+
+	/**read a frame array entry into its local */
+	private void reload(int slot) {
+		mv.visitVarInsn(ALOAD, 2);
+		bconst(mv, slot);
+		mv.visitInsn(AALOAD);
+		store(slot);
+	}
+
+	/** -> (throws SignalError(pos, msg)) */
+	private void signal(int pos, String msg) {
+		mv.visitTypeInsn(NEW, T_SIGNALERROR);
+		mv.visitInsn(DUP);
+		bconst(mv, pos);
+		mv.visitLdcInsn(msg);
+		mv.visitMethodInsn(INVOKESPECIAL, T_SIGNALERROR, "<init>", D_NEWSIGNALERROR, false);
+		mv.visitInsn(ATHROW);
+	}
+
+	/**Equivalent of {@link Interpreter#eval(Instruction[], Value[], int)}. */
+	private void block(Instruction[] code, int id) {
+		mv.visitVarInsn(ALOAD, 1);
+		bconst(mv, code.length);
+		bconst(mv, id);
+		mv.visitMethodInsn(INVOKEVIRTUAL, T_INTERPRETER, "tick", "(II)V", false);
+		for (Instruction ins : code)
+			if (ins instanceof IntrinsicIns ii) intrinsic(ii);
+			else if (ins instanceof FusedIns fi) {
+				for (IntrinsicIns ii : fi.parts) intrinsic(ii);
+			}
+			else if (ins instanceof ConstantIns ci) {
+				constant(ci.val, D_VALUE);
+				store(ci.out);
+			} else if (ins instanceof PackIns pi) pack(pi.io);
+			else if (ins instanceof UnpackIns ui) unpack(ui);
+			else if (ins instanceof SwitchIns si) branch(si);
+			else if (ins instanceof LoopIns li) loop(li);
+			else if (ins instanceof FunctionIns fi) generic(fi, fi.io);
+			else if (ins instanceof VirtualCallIns vi) generic(vi, vi.io);
+			else {
+				for (int i = 0; i < slots; i++) spill(i);
+				generic(ins);
+				for (int i = 0; i < slots; i++) reload(i);
+			}
+	}
+
+	/**Evaluate an instruction through its interpreted implementation. */
+	private void generic(Instruction ins) {
+		constant(ins, D_INSTRUCTION);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitMethodInsn(INVOKEVIRTUAL, T_INSTRUCTION, "eval", D_EVAL, false);
+	}
+
+	private void generic(Instruction ins, int[] io) {
+		for (int i = 1; i < io.length; i++) spill(io[i]);
+		generic(ins);
+		reload(io[0]);
+	}
+
+	private void intrinsic(IntrinsicIns ins) {
+		Method m = ins.method;
+		Impl an = ins.impl;
+		int[] io = ins.io;
+		Class<?>[] types = m.getParameterTypes();
+		int j = 0;
+		Label start = new Label(), end = new Label(), handler = new Label(), next = new Label();
+		mv.visitTryCatchBlock(start, end, handler, T_RUNTIMEEXCEPTION);
+		mv.visitLabel(start);
+		if (an.useIp()) {
+			mv.visitVarInsn(ALOAD, 1);
+			j++;
+		}
+		if (an.useScope()) {
+			load(io[1]);
+			unbox(mv, types[j++]);
+		}
+		for (int i = 0; i < an.inputs(); i++) {
+			load(io[i + 2]);
+			unbox(mv, types[j++]);
+		}
+		mv.visitMethodInsn(INVOKESTATIC, getInternalName(m.getDeclaringClass()), m.getName(), getMethodDescriptor(m), false);
+		if (m.getReturnType() == void.class && an.outType().isEmpty())
+			load(io[2]);
+		else box(mv, m, an.outType());
+		mv.visitLabel(end);
+		store(io[0]);
+		mv.visitJumpInsn(GOTO, next);
+		mv.visitLabel(handler);
+		mv.visitVarInsn(ASTORE, tmp);
+		mv.visitTypeInsn(NEW, T_SIGNALERROR);
+		mv.visitInsn(DUP);
+		bconst(mv, io[0]);
+		mv.visitInsn(ACONST_NULL);
+		mv.visitVarInsn(ALOAD, tmp);
+		mv.visitMethodInsn(INVOKESPECIAL, T_SIGNALERROR, "<init>", D_NEWSIGNALERROR1, false);
+		mv.visitInsn(ATHROW);
+		mv.visitLabel(next);
+	}
+
+	private void pack(int[] io) {
+		int l = io.length - 2;
+		if (l <= 0) mv.visitFieldInsn(GETSTATIC, T_VALUE, "NO_ELEM", D_ELEMENTS);
+		else {
+			mv.visitVarInsn(ALOAD, 1);
+			mv.visitLdcInsn((long)l);
+			mv.visitInsn(LCONST_0);
+			bconst(mv, io[0]);
+			mv.visitMethodInsn(INVOKEVIRTUAL, T_INTERPRETER, "allocate", "(JJI)V", false);
+			bconst(mv, l);
+			mv.visitTypeInsn(ANEWARRAY, T_VALUE);
+			for (int i = 0; i < l; i++) {
+				mv.visitInsn(DUP);
+				bconst(mv, i);
+				load(io[i + 2]);
+				mv.visitInsn(AASTORE);
+			}
+		}
+		mv.visitFieldInsn(GETSTATIC, getInternalName(Intrinsics.class), "VOID", getDescriptor(Type.class));
+		mv.visitMethodInsn(INVOKESTATIC, T_VALUE, "of", "(" + D_ELEMENTS + getDescriptor(Type.class) + ")" + D_VALUE, false);
+		store(io[0]);
+	}
+
+	private void unpack(UnpackIns ins) {
+		Label ok = new Label();
+		load(ins.in);
+		mv.visitFieldInsn(GETFIELD, T_VALUE, "elements", D_ELEMENTS);
+		mv.visitInsn(ARRAYLENGTH);
+		bconst(mv, ins.idx);
+		mv.visitJumpInsn(IF_ICMPGT, ok);
+		signal(~ins.out, "value has too few elements");
+		mv.visitLabel(ok);
+		load(ins.in);
+		mv.visitFieldInsn(GETFIELD, T_VALUE, "elements", D_ELEMENTS);
+		bconst(mv, ins.idx);
+		mv.visitInsn(AALOAD);
+		store(ins.out);
+	}
+
+	private void branch(SwitchIns ins) {
+		Instruction[][] branches = ins.branches;
+		int[] io = ins.io;
+		int out = io[0], l = branches.length;
+		Label dflt = new Label(), end = new Label();
+		Label[] labels = new Label[l];
+		for (int i = 0; i < l; i++) labels[i] = new Label();
+		load(io[2]);
+		mv.visitFieldInsn(GETFIELD, T_VALUE, "value", "J");
+		mv.visitInsn(L2I);
+		mv.visitTableSwitchInsn(0, l - 1, dflt, labels);
+		for (int i = 0; i < l; i++) {
+			mv.visitLabel(labels[i]);
+			load(io[1]);
+			store(out);
+			block(branches[i], out);
+			load(io[3 + i]);
+			store(out);
+			mv.visitJumpInsn(GOTO, end);
+		}
+		//out of range and dynamic switches are left to the interpreter
+		mv.visitLabel(dflt);
+		for (int i = 0; i < slots; i++) spill(i);
+		generic(ins);
+		for (int i = 0; i < slots; i++) reload(i);
+		mv.visitLabel(end);
+	}
+
+	private void loop(LoopIns ins) {
+		Label start = new Label(), end = new Label();
+		load(ins.init);
+		store(ins.out);
+		ifZero(ins.out, end);
+		if (ins.head.length > 0) {
+			load(ins.scope0);
+			store(ins.scope1);
+			block(ins.head, ins.out);
+		}
+		mv.visitLabel(start);
+		load(ins.scope0);
+		store(ins.scope1);
+		block(ins.body, ins.out);
+		load(ins.next);
+		store(ins.out);
+		ifZero(ins.out, end);
+		mv.visitJumpInsn(GOTO, start);
+		mv.visitLabel(end);
+	}
+
+	/** jump to target if the integer value in slot is 0 */
+	private void ifZero(int slot, Label target) {
+		load(slot);
+		mv.visitFieldInsn(GETFIELD, T_VALUE, "value", "J");
+		mv.visitInsn(LCONST_0);
+		mv.visitInsn(LCMP);
+		mv.visitJumpInsn(IFEQ, target);
+	}
+
+}
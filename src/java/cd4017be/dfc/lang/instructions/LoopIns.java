@@ -9,10 +9,13 @@ import cd4017be.dfc.lang.Value;
  * @author cd4017be */
 public class LoopIns extends Instruction {
 
-	private final Instruction[] body;
-	private final int init, next, out, scope0, scope1;
+	final Instruction[] head, body;
+	final int init, next, out, scope0, scope1;
 
-	public LoopIns(Instruction[] body, int init, int next, int out, int scope0, int scope1) {
+	/**@param head loop invariant instructions, evaluated once before the first iteration
+	 * @param body instructions evaluated each iteration */
+	public LoopIns(Instruction[] head, Instruction[] body, int init, int next, int out, int scope0, int scope1) {
+		this.head = head;
 		this.body = body;
 		this.init = init;
 		this.next = next;
@@ -30,12 +33,17 @@ public class LoopIns extends Instruction {
 	public void eval(Interpreter ip, Value[] vars) throws SignalError {
 		Value c = vars[init];
 		vars[out] = c;
-		while (c.value != 0) {
+		if (c.value == 0) return;
+		if (head.length > 0) {
+			vars[scope1] = vars[scope0];
+			ip.eval(head, vars, out);
+		}
+		do {
 			vars[scope1] = vars[scope0];
 			ip.eval(body, vars, out);
 			c = vars[next];
 			vars[out] = c;
-		}
+		} while (c.value != 0);
 	}
 
 }
@@ -11,17 +11,25 @@ import modules.dfc.module.Intrinsics;
  * @author cd4017be */
 public class PackIns extends Instruction {
 
-	private int[] io;
+	final int[] io;
+
+	public PackIns() {
+		this(null);
+	}
+
+	private PackIns(int[] io) {
+		this.io = io;
+	}
 
 	@Override
 	public Instruction setIO(int[] io) throws SignalError {
-		this.io = io;
-		return this;
+		return new PackIns(io);
 	}
 
 	@Override
 	public void eval(Interpreter ip, Value[] vars) throws SignalError {
 		int l = io.length - 2;
+		if (l > 0) ip.allocate(l, 0, io[0]);
 		Value[] elem = l <= 0 ? Value.NO_ELEM : new Value[l];
 		for (int i = 0; i < l; i++)
 			elem[i] = vars[io[i + 2]];
@@ -0,0 +1,156 @@
+package cd4017be.dfc.lang.instructions;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import cd4017be.dfc.lang.Instruction;
+import cd4017be.dfc.lang.Interpreter;
+import cd4017be.dfc.lang.SignalError;
+import cd4017be.dfc.lang.Value;
+import cd4017be.dfc.lang.builders.Function;
+
+/**Evaluates independent parts of a scope branch concurrently on the common {@link ForkJoinTask fork-join pool}.
+ * Each forked part runs on a copy of the frame with its own {@link Interpreter#fork() sub interpreter}
+ * and only the values it provides to the rest of the function are copied back afterwards.
+ * So slots that the sequential code shares between these parts can't interfere.
+ * <p> Parts are only forked if they are free of side effects, which depends on the called functions.
+ * As long as that is not known or if there is only one processor, the same code is evaluated sequentially instead. </p>
+ * @author cd4017be */
+public class ParallelIns extends Instruction {
+
+	final Instruction[] seq, pre, main, post;
+	final Instruction[][] forks;
+	final int[][] outs;
+	final int id;
+
+	/**@param seq all instructions in sequential order
+	 * @param pre the instructions to run before forking
+	 * @param main the instructions not forked, for the current thread
+	 * @param forks the instructions of each forked part
+	 * @param outs the frame slots each forked part provides
+	 * @param post the instructions to run after joining
+	 * @param id scope block reported on errors */
+	public ParallelIns(
+		Instruction[] seq, Instruction[] pre, Instruction[] main,
+		Instruction[][] forks, int[][] outs, Instruction[] post, int id
+	) {
+		this.seq = seq;
+		this.pre = pre;
+		this.main = main;
+		this.forks = forks;
+		this.outs = outs;
+		this.post = post;
+		this.id = id;
+	}
+
+	@Override
+	public Instruction setIO(int[] io) throws SignalError {
+		throw new SignalError(~io[0], "can't dynamically call parallel block");
+	}
+
+	@Override
+	public void eval(Interpreter ip, Value[] vars) throws SignalError {
+		if (ForkJoinPool.getCommonPoolParallelism() <= 1) {
+			ip.eval(seq, vars, id);
+			return;
+		}
+		for (Instruction[] code : forks)
+			if (pure(code, null) != Boolean.TRUE) {
+				ip.eval(seq, vars, id);
+				return;
+			}
+		ip.eval(pre, vars, id);
+		int n = forks.length;
+		Interpreter[] ips = new Interpreter[n];
+		Value[][] frames = new Value[n][];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n];
+		for (int i = 0; i < n; i++) {
+			Interpreter sub = ips[i] = ip.fork();
+			Value[] frame = frames[i] = vars.clone();
+			Instruction[] code = forks[i];
+			tasks[i] = ForkJoinTask.adapt(() -> {
+				sub.eval(code, frame, id);
+				return null;
+			}).fork();
+		}
+		SignalError err = null;
+		try {
+			ip.eval(main, vars, id);
+		} catch(SignalError e) {
+			err = e;
+			for (Interpreter sub : ips) sub.cancel();
+		}
+		for (int i = 0; i < n; i++)
+			try {
+				tasks[i].join();
+				ip.join(ips[i], id);
+			} catch(SignalError e) {
+				if (err == null) err = e;
+			} catch(RuntimeException e) {
+				if (err == null) err = e.getCause() instanceof SignalError se ? se : new SignalError(~id, null, e);
+			}
+		if (err != null) throw err;
+		for (int i = 0; i < n; i++) {
+			Value[] frame = frames[i];
+			for (int s : outs[i]) vars[s] = frame[s];
+		}
+		ip.eval(post, vars, id);
+	}
+
+	/**@param ins
+	 * @return whether the instruction contains function calls or loops */
+	public static boolean costly(Instruction ins) {
+		if (ins instanceof FunctionIns || ins instanceof VirtualCallIns || ins instanceof LoopIns) return true;
+		if (ins instanceof SwitchIns si) {
+			for (Instruction[] code : si.branches)
+				for (Instruction i : code)
+					if (costly(i)) return true;
+		} else if (ins instanceof ParallelIns pi)
+			for (Instruction i : pi.seq)
+				if (costly(i)) return true;
+		return false;
+	}
+
+	/**@param code
+	 * @param self the function that code belongs to
+	 * @return whether the code is free of side effects or null if unknown */
+	public static Boolean pure(Instruction[] code, Function self) {
+		Boolean res = Boolean.TRUE;
+		for (Instruction ins : code) {
+			Boolean p = pure(ins, self);
+			if (p == Boolean.FALSE) return p;
+			if (p == null) res = null;
+		}
+		return res;
+	}
+
+	private static Boolean pure(Instruction[][] codes, Function self) {
+		Boolean res = Boolean.TRUE;
+		for (Instruction[] code : codes) {
+			Boolean p = pure(code, self);
+			if (p == Boolean.FALSE) return p;
+			if (p == null) res = null;
+		}
+		return res;
+	}
+
+	/**@param ins
+	 * @param self the function that ins belongs to
+	 * @return whether the instruction is free of side effects or null if unknown */
+	public static Boolean pure(Instruction ins, Function self) {
+		if (ins.pureOp() != null || ins instanceof PackIns) return true;
+		if (ins instanceof FusedIns fi) {
+			for (IntrinsicIns ii : fi.parts)
+				if (ii.pureOp() == null) return false;
+			return true;
+		}
+		if (ins instanceof FunctionIns fi)
+			return fi.func == self ? Boolean.TRUE : fi.func.pure(self);
+		if (ins instanceof LoopIns li)
+			return pure(new Instruction[][] {li.head, li.body}, self);
+		if (ins instanceof SwitchIns si)
+			return pure(si.branches, self);
+		if (ins instanceof ParallelIns pi) return pure(pi.seq, self);
+		return false;
+	}
+
+}
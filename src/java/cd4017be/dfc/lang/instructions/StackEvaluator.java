@@ -0,0 +1,161 @@
+package cd4017be.dfc.lang.instructions;
+
+import cd4017be.dfc.lang.Instruction;
+import cd4017be.dfc.lang.Interpreter;
+import cd4017be.dfc.lang.SignalError;
+import cd4017be.dfc.lang.Value;
+import cd4017be.dfc.lang.builders.Function;
+
+/**Non-recursive evaluation mode for the {@link Interpreter}:
+ * Function calls, switch branches and loop bodies are entered by pushing continuation records
+ * onto a heap allocated stack instead of recursing on the Java thread stack.
+ * So the recursion depth is only bounded by the number of stack slots given as limit.
+ * <p> Compiled function bodies are not used in this mode, because they call other functions recursively. </p>
+ * @author cd4017be */
+public class StackEvaluator {
+
+	private final Interpreter ip;
+	private final long limit;
+	private Cont top;
+	private long used;
+
+	private StackEvaluator(Interpreter ip, long limit) {
+		this.ip = ip;
+		this.limit = limit;
+	}
+
+	/**Equivalent of {@link Interpreter#eval(Instruction[], Value[], int) ip.eval(code, vars, 0)}
+	 * @param ip the interpreter
+	 * @param code root instructions
+	 * @param vars root frame
+	 * @param limit maximum number of stack slots (frame slots + one per continuation record)
+	 * @throws SignalError */
+	public static void eval(Interpreter ip, Instruction[] code, Value[] vars, long limit) throws SignalError {
+		StackEvaluator se = new StackEvaluator(ip, limit);
+		try {
+			se.enter(code, vars, 0, null, 0);
+			se.run();
+		} catch (SignalError e) {
+			for (Cont c = se.top; c != null; c = c.parent)
+				if (c.ins instanceof FunctionIns fi) {
+					ip.pop(c.vars, c.aux);
+					e.pos = ~fi.io[0];
+				}
+			throw e;
+		}
+	}
+
+	private void run() throws SignalError {
+		for (Cont c; (c = top) != null;)
+			if (c.pc < c.code.length) {
+				Instruction ins = c.code[c.pc++];
+				if (ins instanceof FunctionIns fi) call(fi, c.vars);
+				else if (ins instanceof SwitchIns si) branch(si, c.vars);
+				else if (ins instanceof LoopIns li) loop(li, c.vars);
+				else ins.eval(ip, c.vars);
+			} else exit(c);
+	}
+
+	private void enter(Instruction[] code, Value[] vars, int id, Instruction ins, int aux) throws SignalError {
+		ip.tick(code.length, id);
+		if (++used > limit)
+			throw new SignalError(~id, "stack memory limit exceeded");
+		top = new Cont(top, code, vars, ins, aux);
+	}
+
+	private void exit(Cont c) throws SignalError {
+		Instruction ins = c.ins;
+		if (ins instanceof LoopIns li) {
+			if (c.aux != 0) {
+				//head done, continue with the body
+				top = c.parent;
+				used--;
+				enter(li.body, c.vars, li.out, li, 0);
+				return;
+			}
+			Value v = c.vars[li.next];
+			c.vars[li.out] = v;
+			if (v.value != 0) {
+				c.vars[li.scope1] = c.vars[li.scope0];
+				ip.tick(c.code.length, li.out);
+				c.pc = 0;
+				return;
+			}
+		}
+		top = c.parent;
+		used--;
+		if (ins instanceof FunctionIns fi) {
+			top.vars[fi.io[0]] = c.vars[fi.func.ret];
+			ip.pop(c.vars, c.aux);
+			used -= c.aux;
+		} else if (ins instanceof SwitchIns si)
+			c.vars[si.io[0]] = c.vars[si.io[3 + c.aux]];
+	}
+
+	private void call(FunctionIns ins, Value[] vars) throws SignalError {
+		Function func = ins.func;
+		int[] io = ins.io;
+		try {
+			if (func.vars == null) func.load();
+		} catch (SignalError e) {
+			e.pos = ~io[0];
+			throw e;
+		}
+		int n = func.vars.length;
+		if ((used += n) > limit)
+			throw new SignalError(~io[0], "stack memory limit exceeded");
+		Value[] vars1 = ip.push(n);
+		for (int i = 1; i < io.length; i++)
+			vars1[i - 1] = vars[io[i]];
+		try {
+			enter(func.code, vars1, 0, ins, n);
+		} catch (SignalError e) {
+			ip.pop(vars1, n);
+			e.pos = ~io[0];
+			throw e;
+		}
+	}
+
+	private void branch(SwitchIns ins, Value[] vars) throws SignalError {
+		int[] io = ins.io;
+		int br = (int)vars[io[2]].value;
+		if (br < 0 || br >= ins.branches.length) {
+			//errors and dynamic switches are handled recursively
+			ins.eval(ip, vars);
+			return;
+		}
+		vars[io[0]] = vars[io[1]];
+		enter(ins.branches[br], vars, io[0], ins, br);
+	}
+
+	private void loop(LoopIns ins, Value[] vars) throws SignalError {
+		Value c = vars[ins.init];
+		vars[ins.out] = c;
+		if (c.value == 0) return;
+		vars[ins.scope1] = vars[ins.scope0];
+		if (ins.head.length > 0) enter(ins.head, vars, ins.out, ins, 1);
+		else enter(ins.body, vars, ins.out, ins, 0);
+	}
+
+	/**Continuation record
+	 * @author cd4017be */
+	private static class Cont {
+		final Cont parent;
+		final Instruction[] code;
+		final Value[] vars;
+		/** instruction that entered this block or null for the root */
+		final Instruction ins;
+		/** frame size for function calls, branch index for switches, 1 for loop heads */
+		final int aux;
+		int pc;
+
+		Cont(Cont parent, Instruction[] code, Value[] vars, Instruction ins, int aux) {
+			this.parent = parent;
+			this.code = code;
+			this.vars = vars;
+			this.ins = ins;
+			this.aux = aux;
+		}
+	}
+
+}
@@ -1,5 +1,7 @@
 package cd4017be.dfc.lang.instructions;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import cd4017be.dfc.lang.Instruction;
 import cd4017be.dfc.lang.Interpreter;
 import cd4017be.dfc.lang.SignalError;
@@ -9,8 +11,10 @@ import cd4017be.dfc.lang.Value;
  * @author cd4017be */
 public class SwitchIns extends Instruction {
 
-	private final Instruction[][] branches;
-	private int[] io;
+	final Instruction[][] branches;
+	final int[] io;
+	/** switch implementations of dynamic conditions -> bound to io */
+	private final ConcurrentHashMap<Instruction, Instruction> bound = new ConcurrentHashMap<>();
 
 	/**
 	 * @param branches
@@ -43,7 +47,7 @@ public class SwitchIns extends Instruction {
 				vars[out] = elem[i];
 				ip.eval(branches[i], vars, out);
 			}
-			impl.setIO(io).eval(ip, vars);
+			VirtualCallIns.bind(bound, impl, io).eval(ip, vars);
 		}
 	}
 
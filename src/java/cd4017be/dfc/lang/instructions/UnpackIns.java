@@ -10,19 +10,22 @@ import cd4017be.dfc.lang.Value;
  * @author cd4017be */
 public class UnpackIns extends Instruction {
 
-	private final int idx;
-	private int in, out;
+	final int idx, in, out;
 
 	public UnpackIns(int idx) {
+		this(idx, 0, 0);
+	}
+
+	private UnpackIns(int idx, int in, int out) {
 		this.idx = idx;
+		this.in = in;
+		this.out = out;
 	}
 
 	@Override
 	public Instruction setIO(int[] io) throws SignalError {
 		checkIO(io, 3);
-		this.out = io[0];
-		this.in = io[2];
-		return this;
+		return new UnpackIns(idx, io[2], io[0]);
 	}
 
 	@Override
@@ -33,6 +36,16 @@ public class UnpackIns extends Instruction {
 		vars[out] = v.elements[idx];
 	}
 
+	/**@return the index of the element to extract */
+	public int index() {
+		return idx;
+	}
+
+	@Override
+	public Object pureOp() {
+		return idx;
+	}
+
 	public static Node node(int i, Node in, int idx) {
 		Node n = new Node(new UnpackIns(i), Node.INSTR, 1, idx);
 		n.in[0].connect(in);
@@ -1,5 +1,7 @@
 package cd4017be.dfc.lang.instructions;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 import cd4017be.dfc.lang.Instruction;
 import cd4017be.dfc.lang.Interpreter;
 import cd4017be.dfc.lang.SignalError;
@@ -11,17 +13,24 @@ import modules.dfc.module.Intrinsics;
 public class VirtualCallIns extends Instruction {
 
 	private final String[] names;
-	private int[] io;
+	final int[] io;
+	/** looked up implementations -> bound to io, so each is only bound once per call site */
+	private final ConcurrentHashMap<Instruction, Instruction> bound;
 
 	public VirtualCallIns(String[] names) {
+		this(names, null);
+	}
+
+	private VirtualCallIns(String[] names, int[] io) {
 		this.names = names;
+		this.io = io;
+		this.bound = io == null ? null : new ConcurrentHashMap<>();
 	}
 
 	@Override
 	public Instruction setIO(int[] io) throws SignalError {
 		checkIO(io, names.length + 2);
-		this.io = io;
-		return this;
+		return new VirtualCallIns(names, io);
 	}
 
 	@Override
@@ -29,12 +38,25 @@ public class VirtualCallIns extends Instruction {
 		for (int i = 0; i < names.length; i++) {
 			Instruction ins = vars[io[i + 2]].type.lookup(names[i]);
 			if (ins == null) continue;
-			ins.setIO(io).eval(ip, vars);
+			bind(bound, ins, io).eval(ip, vars);
 			if (vars[io[0]] != Intrinsics.NULL) return;
 		}
 		throw dynCallError(vars);
 	}
 
+	/**@param bound cache of already bound implementations
+	 * @param impl a dynamically looked up implementation
+	 * @param io frame slots to bind it to
+	 * @return impl bound to io */
+	static Instruction bind(ConcurrentHashMap<Instruction, Instruction> bound, Instruction impl, int[] io)
+	throws SignalError {
+		Instruction ins = bound.get(impl);
+		if (ins != null) return ins;
+		ins = impl.setIO(io);
+		Instruction prev = bound.putIfAbsent(impl, ins);
+		return prev != null ? prev : ins;
+	}
+
 	private SignalError dynCallError(Value[] vars) {
 		StringBuilder sb = new StringBuilder();
 		sb.append('(').append(vars[io[2]].type);
@@ -9,9 +9,12 @@ import static modules.dfc.module.Intrinsics.NULL;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import cd4017be.dfc.lang.*;
 import cd4017be.dfc.lang.Module;
+import cd4017be.dfc.lang.builders.Function;
 import cd4017be.dfc.lang.instructions.IntrinsicLoader.Impl;
 import cd4017be.dfc.lang.instructions.IntrinsicLoader.Init;
 
@@ -20,6 +23,8 @@ import cd4017be.dfc.lang.instructions.IntrinsicLoader.Init;
 public class Intrinsics {
 
 	public static Type VOID, INT, MAP, LIST;
+	/** maximum number of elements {@link #parMap} evaluates per forked task */
+	public static int PAR_SPLIT = Integer.getInteger("dfc.parMapSplit", 64);
 
 	@Init
 	public static void init(Module m) {
@@ -95,14 +100,16 @@ public class Intrinsics {
 		return updateMap(list, list.elements, list.value);
 	}
 
-	@Impl(inputs = 3)
-	public static Value listAdd(Value list, int idx, Value val) {
+	@Impl(inputs = 3, useIp = true)
+	public static Value listAdd(Interpreter ip, Value list, int idx, Value val) {
 		check(list);
 		int l = (int)list.value;
 		if (idx > l) throw new IndexOutOfBoundsException(idx);
 		Value[] arr = list.elements;
 		if (l == arr.length) {
-			arr = new Value[l == 0 ? 16 : l << 1];
+			int n = l == 0 ? 16 : l << 1;
+			ip.allocate(n, 0);
+			arr = new Value[n];
 			Arrays.fill(arr, l + 1, arr.length, NULL);
 			System.arraycopy(list.elements, 0, arr, 0, idx);
 		}
@@ -136,7 +143,8 @@ public class Intrinsics {
 		return NULL;
 	}
 
-	private static Value[] resize(Value map, int l) {
+	private static Value[] resize(Interpreter ip, Value map, int l) {
+		ip.allocate(l << 1, 0);
 		Value[] table = elemNew(l << 1);
 		for (int i = 0; i < l; i++) {
 			Value e = map.elements[i];
@@ -177,12 +185,15 @@ public class Intrinsics {
 		return new Value(map.type, table, map.data, counts);
 	}
 
-	@Impl(inputs = 2, outType = "VOID")
-	public static Value[] mapGetOrCreateNode(Value map, byte[] key) {
+	@Impl(inputs = 2, outType = "VOID", useIp = true)
+	public static Value[] mapGetOrCreateNode(Interpreter ip, Value map, byte[] key) {
 		check(map);
 		Value[] table = map.elements;
 		int l = table.length;
-		if (l == 0) table = elemNew(l = 16);
+		if (l == 0) {
+			ip.allocate(16, 0);
+			table = elemNew(l = 16);
+		}
 		int hash = Arrays.hashCode(key);
 		hash ^= hash >>> 16;
 		int idx = hash & l - 1;
@@ -190,12 +201,13 @@ public class Intrinsics {
 		for (Value e = table[idx]; e.elements.length == 2; last = e, e = e.elements[0])
 			if ((int)e.value == hash && Arrays.equals(e.data, key))
 				return new Value[] {updateMap(map, table, map.value), e};
+		ip.allocate(2, 0);
 		Value node = new Value(Intrinsics.VOID, new Value[] {NULL, NULL}, key, hash);
 		if (last != null) last.elements[0] = node;
 		else table[idx] = node;
 		long counts = map.value + 1;
 		if ((int)counts > (l >> 2 | l >> 1) && l < 0x40000000)
-			table = resize(map, l);
+			table = resize(ip, map, l);
 		return new Value[] {updateMap(map, table, counts), node};
 	}
 
@@ -205,11 +217,102 @@ public class Intrinsics {
 		return val.elements.length == 2 ? val.elements[1] : val;
 	}
 
-	@Impl(inputs = 3)
-	public static Value mapPut(Value map, byte[] key, Value val) {
-		Value[] n = mapGetOrCreateNode(map, key);
+	@Impl(inputs = 3, useIp = true)
+	public static Value mapPut(Interpreter ip, Value map, byte[] key, Value val) {
+		Value[] n = mapGetOrCreateNode(ip, map, key);
 		n[1].elements[1] = val;
 		return n[0];
 	}
 
+	/**Calls a function on each element, distributing the elements in chunks of {@link #PAR_SPLIT}
+	 * over the common fork-join pool. Each chunk is evaluated by its own interpreter in its own frame.
+	 * Functions that may have side effects are called sequentially in element order instead.
+	 * @param ip
+	 * @param scope passed on to the function
+	 * @param func name of a single input function block without arguments, optionally packed with its module
+	 * @param elements
+	 * @return the function results, in the same order as the elements
+	 * @throws IllegalStateException if a call failed (the first failing element is reported),
+	 * so the error is reported at the calling block rather than inside the function */
+	@Impl(useIp = true, useScope = true, inputs = 2, outType = "VOID")
+	public static Value[] parMap(Interpreter ip, Value scope, Value func, Value[] elements) {
+		Function f = function(ip, func);
+		int n = elements.length, split = Math.max(1, PAR_SPLIT), m = (n + split - 1) / split;
+		ip.allocate(n, 0);
+		Value[] res = new Value[n];
+		//side effects must happen in element order
+		if (m <= 1 || ForkJoinPool.getCommonPoolParallelism() <= 1 || f.pure(null) != Boolean.TRUE) {
+			try {
+				map(ip, f, scope, elements, res, 0, n);
+			} catch(SignalError e) {
+				throw failed(e);
+			}
+			return res;
+		}
+		Interpreter[] ips = new Interpreter[m];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[m];
+		for (int i = 1; i < m; i++) {
+			Interpreter sub = ips[i] = ip.fork();
+			int from = i * split, to = Math.min(from + split, n);
+			tasks[i] = ForkJoinTask.adapt(() -> {
+				map(sub, f, scope, elements, res, from, to);
+				return null;
+			}).fork();
+		}
+		RuntimeException err = null;
+		try {
+			map(ip, f, scope, elements, res, 0, split);
+		} catch(SignalError e) {
+			err = failed(e);
+		} catch(RuntimeException e) {
+			err = e;
+		}
+		if (err != null)
+			for (int i = 1; i < m; i++) ips[i].cancel();
+		for (int i = 1; i < m; i++)
+			try {
+				tasks[i].join();
+				//any error is reported at this block by failed(), so the scope id doesn't matter
+				ip.join(ips[i], 0);
+			} catch(SignalError e) {
+				if (err == null) err = failed(e);
+			} catch(RuntimeException e) {
+				if (err == null) err = e.getCause() instanceof SignalError se ? failed(se) : e;
+			}
+		if (err != null) throw err;
+		return res;
+	}
+
+	/**@param e error raised inside a called function, with a position relative to that function
+	 * @return the error to report at the calling block instead */
+	private static RuntimeException failed(SignalError e) {
+		return new IllegalStateException(e.getMessage(), e);
+	}
+
+	private static Function function(Interpreter ip, Value func) {
+		Module m = func.elements.length > 0 && func.elements[0].type == modules.dfc.module.Intrinsics.MODULE
+			? LoadingCache.getModule(func.elements[0].dataAsString()) : ip.task().root.module;
+		BlockDef def = m.getBlock(func.dataAsString());
+		//map() only passes the element, so the function can't have any arguments
+		if (!(def.assembler instanceof Function f) || f.par != 1 || def.ins.length != 1 || def.outs.length != 1)
+			throw new IllegalArgumentException("not a single input function block: " + def);
+		try {
+			f.load();
+		} catch(SignalError e) {
+			throw failed(e);
+		}
+		return f;
+	}
+
+	private static void map(Interpreter ip, Function f, Value scope, Value[] elements, Value[] res, int from, int to)
+	throws SignalError {
+		Value[] frame = new Value[f.vars.length];
+		for (int i = from; i < to; i++) {
+			frame[0] = scope;
+			frame[1] = elements[i];
+			f.eval(ip, frame);
+			res[i] = frame[f.ret];
+		}
+	}
+
 }
@@ -20,6 +20,8 @@ import cd4017be.dfc.lang.instructions.IntrinsicLoader.Init;
 public class Intrinsics {
 
 	public static Type VOID, INT, STRING;
+	/** number of entries processed by bulk operations between checks for cancellation */
+	static final int CHUNK = 1 << 16;
 
 	public static final NodeAssembler PACK = (block, context, idx) -> {
 		if (block.outs() != 1)
@@ -126,19 +128,19 @@ public class Intrinsics {
 		INT = LOADER.getType("int");
 	}
 
-	@Impl(inputs = 2, outType = "VOID")
+	@Impl(inputs = 2, outType = "VOID", pure = true)
 	public static long swt(long path, long count) {
 		return path >= 0 && path < count ? path + 1 : 0;
 	}
 
 	//type operations:
 
-	@Impl(inputs = 4)
+	@Impl(inputs = 4, pure = true)
 	public static Value signal(Type type, Value[] elements, byte[] data, long value) {
 		return new Value(type, elements, data, value);
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long typeEqual(Type a, Type b) {
 		return a == b ? -1 : 0;
 	}
@@ -150,7 +152,20 @@ public class Intrinsics {
 
 	//element operations:
 
-	@Impl(inputs = 1, outType = "VOID")
+	@Impl(inputs = 1, outType = "VOID", useIp = true)
+	public static Value[] elemNew(Interpreter ip, int len) {
+		ip.allocate(len, 0);
+		if (len <= CHUNK) return elemNew(len);
+		Value[] arr = new Value[len];
+		for (int i = 0; i < len; i += CHUNK) {
+			ip.charge(CHUNK >> 6);
+			Arrays.fill(arr, i, Math.min(i + CHUNK, len), NULL);
+		}
+		return arr;
+	}
+
+	/**@param len
+	 * @return a new array of null elements */
 	public static Value[] elemNew(int len) {
 		if (len == 0) return NO_ELEM;
 		Value[] arr = new Value[len];
@@ -158,7 +173,7 @@ public class Intrinsics {
 		return arr;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static int elemLen(Value[] arr) {
 		return arr.length;
 	}
@@ -173,24 +188,25 @@ public class Intrinsics {
 		arr[idx] = val;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long elemEqual(Value[] a, Value[] b) {
 		return a == b ? -1 : 0;
 	}
 
-	@Impl(inputs = 5)
-	public static void elemCopy(Value[] dst, int dstOfs, Value[] src, int srcOfs, int len) {
-		System.arraycopy(src, srcOfs, dst, dstOfs, len);
+	@Impl(inputs = 5, useIp = true)
+	public static void elemCopy(Interpreter ip, Value[] dst, int dstOfs, Value[] src, int srcOfs, int len) {
+		copy(ip, src, srcOfs, src.length, dst, dstOfs, dst.length, len);
 	}
 
 	//data operations:
 
-	@Impl(inputs = 1, outType = "STRING")
-	public static byte[] dataNew(int len) {
+	@Impl(inputs = 1, outType = "STRING", useIp = true)
+	public static byte[] dataNew(Interpreter ip, int len) {
+		ip.allocate(0, len);
 		return new byte[len];
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static int dataLen(byte[] data) {
 		return data.length;
 	}
@@ -245,13 +261,34 @@ public class Intrinsics {
 		data[idx+6] = (byte)(val >> 48); data[idx+7] = (byte)(val >> 56);
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long dataEqual(byte[] a, byte[] b) {
 		return a == b ? -1 : 0;
 	}
 
-	@Impl(inputs = 5)
-	public static void dataCopy(byte[] dst, int dstOfs, byte[] src, int srcOfs, int len) {
+	@Impl(inputs = 5, useIp = true)
+	public static void dataCopy(Interpreter ip, byte[] dst, int dstOfs, byte[] src, int srcOfs, int len) {
+		copy(ip, src, srcOfs, src.length, dst, dstOfs, dst.length, len);
+	}
+
+	/**{@link System#arraycopy} in chunks, charging each against the task's budget. */
+	private static void copy(
+		Interpreter ip, Object src, int srcOfs, int srcLen, Object dst, int dstOfs, int dstLen, int len
+	) {
+		if (len > CHUNK) {
+			Objects.checkFromIndexSize(srcOfs, len, srcLen);
+			Objects.checkFromIndexSize(dstOfs, len, dstLen);
+			if (src == dst && dstOfs > srcOfs)
+				//copy overlapping ranges back to front
+				for (; len > CHUNK; len -= CHUNK) {
+					ip.charge(CHUNK >> 6);
+					System.arraycopy(src, srcOfs + len - CHUNK, dst, dstOfs + len - CHUNK, CHUNK);
+				}
+			else for (; len > CHUNK; len -= CHUNK, srcOfs += CHUNK, dstOfs += CHUNK) {
+				ip.charge(CHUNK >> 6);
+				System.arraycopy(src, srcOfs, dst, dstOfs, CHUNK);
+			}
+		}
 		System.arraycopy(src, srcOfs, dst, dstOfs, len);
 	}
 
@@ -272,92 +309,92 @@ public class Intrinsics {
 		return Long.toString(val).getBytes();
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long add(long a, long b) {
 		return a + b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long sub(long a, long b) {
 		return a - b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long mul(long a, long b) {
 		return a * b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long idiv(long a, long b) {
 		return a / b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long imod(long a, long b) {
 		return a % b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long and(long a, long b) {
 		return a & b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long or(long a, long b) {
 		return a | b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long xor(long a, long b) {
 		return a ^ b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long shl(long a, long b) {
 		return a << b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long ishr(long a, long b) {
 		return a >> b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static int icomp(long a, long b) {
 		return Long.compare(a, b);
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long lt0(long v) {
 		return v < 0 ? -1 : 0;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long gt0(long v) {
 		return v > 0 ? -1 : 0;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long le0(long v) {
 		return v <= 0 ? -1 : 0;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long ge0(long v) {
 		return v >= 0 ? -1 : 0;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long eq0(long v) {
 		return v == 0 ? -1 : 0;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long ne0(long v) {
 		return v != 0 ? -1 : 0;
 	}
 
-	@Impl(inputs = 3)
+	@Impl(inputs = 3, pure = true)
 	public static Value sel(long sel, Value a, Value b) {
 		return sel < 0 ? b : a;
 	}
@@ -0,0 +1,109 @@
+package modules.dfc.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**A file whose reads and writes run in the background, so the circuit can continue
+ * with other work until it {@link Transfer awaits} their completion.
+ * Transfers are issued at consecutive file positions in the order they were started,
+ * like the operations of a file opened for blocking I/O.
+ * @author cd4017be */
+public class AsyncFile implements Closeable {
+
+	private final AsynchronousFileChannel channel;
+	/** file position of the next transfer */
+	private long position;
+
+	/**@param path
+	 * @param append whether to start at the end of the file
+	 * @param options
+	 * @throws IOException */
+	public AsyncFile(Path path, boolean append, OpenOption... options) throws IOException {
+		this.channel = AsynchronousFileChannel.open(path, options);
+		if (append) this.position = channel.size();
+	}
+
+	/**Start reading into the given array, which must not be accessed until the transfer completed.
+	 * @return the transfer, completing with the number of bytes read which is less than len only at the end of the file */
+	public Transfer read(byte[] data, int ofs, int len) {
+		return new Transfer(ByteBuffer.wrap(data, ofs, len), reserve(len), false).next();
+	}
+
+	/**Start writing from the given array, which must not be modified until the transfer completed.
+	 * @return the transfer, completing with the number of bytes written */
+	public Transfer write(byte[] data, int ofs, int len) {
+		return new Transfer(ByteBuffer.wrap(data, ofs, len), reserve(len), true).next();
+	}
+
+	private synchronized long reserve(int len) {
+		long pos = position;
+		position += len;
+		return pos;
+	}
+
+	/**@return number of bytes in the file after the position of the next transfer */
+	public synchronized long remaining() throws IOException {
+		return Math.max(0, channel.size() - position);
+	}
+
+	/**Close the file, any transfers still running complete exceptionally. */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**A running read or write, which continues until its buffer is fully transferred (or the end of the file is reached).
+	 * Closing it only means its result is no longer of interest. */
+	public class Transfer extends CompletableFuture<Integer> implements CompletionHandler<Integer, Void>, Closeable {
+
+		private final ByteBuffer buf;
+		private final long start;
+		private final int ofs;
+		private final boolean write;
+
+		Transfer(ByteBuffer buf, long start, boolean write) {
+			this.buf = buf;
+			this.ofs = buf.position();
+			this.start = start;
+			this.write = write;
+		}
+
+		private int done() {
+			return buf.position() - ofs;
+		}
+
+		Transfer next() {
+			try {
+				long pos = start + done();
+				if (write) channel.write(buf, pos, null, this);
+				else channel.read(buf, pos, null, this);
+			} catch(RuntimeException e) {
+				completeExceptionally(e);
+			}
+			return this;
+		}
+
+		@Override
+		public void completed(Integer n, Void attachment) {
+			if (n >= 0 && buf.hasRemaining()) next();
+			else complete(done());
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			completeExceptionally(e);
+		}
+
+		@Override
+		public void close() {
+			cancel(false);
+		}
+	}
+
+}
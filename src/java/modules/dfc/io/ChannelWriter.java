@@ -0,0 +1,62 @@
+package modules.dfc.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**A file opened for writing, which collects small writes in a buffer
+ * so they reach the file in large batches rather than one system call each.
+ * @author cd4017be */
+public class ChannelWriter implements Closeable {
+
+	final FileChannel channel;
+	private final ByteBuffer buf;
+
+	/**@param channel the file to write to
+	 * @param size buffer size in bytes, 0 to write through */
+	public ChannelWriter(FileChannel channel, int size) {
+		this.channel = channel;
+		this.buf = ByteBuffer.allocateDirect(size);
+	}
+
+	public void write(byte[] data, int ofs, int len) throws IOException {
+		if (len > buf.remaining()) {
+			flush();
+			if (len >= buf.capacity()) {
+				writeFully(ByteBuffer.wrap(data, ofs, len));
+				return;
+			}
+		}
+		buf.put(data, ofs, len);
+	}
+
+	/**Write all buffered data to the file. */
+	public void flush() throws IOException {
+		if (buf.position() == 0) return;
+		buf.flip();
+		try {
+			writeFully(buf);
+		} finally {
+			buf.clear();
+		}
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException {
+		while(b.hasRemaining()) channel.write(b);
+	}
+
+	/**@return number of bytes in the file after the (pending) write position */
+	public long remaining() throws IOException {
+		return Math.max(0, channel.size() - channel.position() - buf.position());
+	}
+
+	/**Flush and close the file. */
+	@Override
+	public void close() throws IOException {
+		try (channel) {
+			flush();
+		}
+	}
+
+}
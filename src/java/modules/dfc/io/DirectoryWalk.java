@@ -0,0 +1,68 @@
+package modules.dfc.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RecursiveTask;
+
+/**Collects the files of a directory tree, walking sub directories concurrently on the fork-join pool.
+ * Symbolic links are not followed, so the walk can't run into cycles.
+ * @author cd4017be */
+public class DirectoryWalk extends RecursiveTask<List<String>> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Path root, dir;
+	private final PathMatcher filter;
+	/** the task walking root, cancelling it stops all sub tasks */
+	private final DirectoryWalk top;
+
+	/**@param root the directory to walk
+	 * @param filter matched against paths relative to root, may be null to accept all */
+	public DirectoryWalk(Path root, PathMatcher filter) {
+		this.root = this.dir = root;
+		this.filter = filter;
+		this.top = this;
+	}
+
+	private DirectoryWalk(DirectoryWalk parent, Path dir) {
+		this.root = parent.root;
+		this.dir = dir;
+		this.filter = parent.filter;
+		this.top = parent.top;
+	}
+
+	/**@return the accepted regular files as paths relative to root using '/' as separator, in no particular order
+	 * @throws UncheckedIOException if a directory can't be read */
+	@Override
+	protected List<String> compute() {
+		if (top.isCancelled()) throw new CancellationException();
+		ArrayList<String> files = new ArrayList<>();
+		ArrayList<DirectoryWalk> subdirs = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p : ds)
+				if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+					DirectoryWalk sub = new DirectoryWalk(this, p);
+					sub.fork();
+					subdirs.add(sub);
+				} else if (Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+					Path rel = root.relativize(p);
+					if (filter == null || filter.matches(rel))
+						files.add(rel.toString().replace(rel.getFileSystem().getSeparator(), "/"));
+				}
+		} catch(IOException e) {
+			for (DirectoryWalk sub : subdirs) sub.cancel(false);
+			throw new UncheckedIOException(e);
+		}
+		for (DirectoryWalk sub : subdirs) files.addAll(sub.join());
+		return files;
+	}
+
+}
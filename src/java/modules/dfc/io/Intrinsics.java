@@ -3,15 +3,23 @@ package modules.dfc.io;
 import static cd4017be.dfc.lang.LoadingCache.LOADER;
 import static cd4017be.dfc.lang.Value.NO_DATA;
 import static cd4017be.dfc.lang.Value.NO_ELEM;
+import static modules.dfc.module.Intrinsics.NULL;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
 import java.io.Closeable;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import cd4017be.dfc.lang.*;
 import cd4017be.dfc.lang.Module;
@@ -19,9 +27,19 @@ import cd4017be.dfc.lang.instructions.ConstantIns;
 import cd4017be.dfc.lang.instructions.IntrinsicLoader.Impl;
 import cd4017be.dfc.lang.instructions.IntrinsicLoader.Init;
 
+/**Files are opened as {@link FileChannel}s, so blocking reads and writes are aborted when the task gets stopped.
+ * Files opened for writing are buffered by a {@link ChannelWriter}.
+ * Files can also be {@link MappedFile memory-mapped} and read directly through the map* operations
+ * or split into records by a {@link RecordReader}.
+ * Directory trees are traversed in parallel by a {@link DirectoryWalk}.
+ * Files opened as {@link AsyncFile} are read and written in the background,
+ * the transfers are registered as resources until they are awaited.
+ * @author cd4017be */
 public class Intrinsics {
 
-	public static Type FILE, INT;
+	public static Type FILE, INT, STRING, VOID;
+	/** buffer size in bytes of files opened for writing, 0 to write through */
+	public static int BUFFER_SIZE = Integer.getInteger("dfc.io.bufferSize", 1 << 16);
 
 	private static ArgumentParser FILE_MODE = new ArgumentParser() {
 		@Override
@@ -52,6 +70,8 @@ public class Intrinsics {
 		m.parsers.put("filemode", FILE_MODE);
 		FILE = m.getType("file");
 		INT = LOADER.getType("int");
+		STRING = LOADER.getType("string");
+		VOID = LOADER.getType("void");
 	}
 
 	//File operations:
@@ -59,10 +79,11 @@ public class Intrinsics {
 	@Impl(inputs = 2, useIp = true)
 	public static Value fileOpen(Interpreter ip, int mode, byte[] path) {
 		try {
-			String pathstr = new String(path, UTF_8);
+			Path p = Path.of(new String(path, UTF_8));
 			Closeable r = switch(mode) {
-			case 0 -> new FileInputStream(pathstr);
-			case 1, 2 -> new FileOutputStream(pathstr, mode == 2);
+			case 0 -> FileChannel.open(p, READ);
+			case 1 -> new ChannelWriter(FileChannel.open(p, WRITE, CREATE, TRUNCATE_EXISTING), BUFFER_SIZE);
+			case 2 -> new ChannelWriter(FileChannel.open(p, WRITE, CREATE, APPEND), BUFFER_SIZE);
 			default -> throw new IllegalArgumentException("invalid open mode");
 			};
 			return new Value(FILE, NO_ELEM, NO_DATA, ip.addResource(r));
@@ -73,46 +94,297 @@ public class Intrinsics {
 
 	@Impl(inputs = 4, useIp = true)
 	public static Value fileRead(Interpreter ip, Value file, byte[] data, int ofs, int len) {
-		if (!(ip.getResource(file.value) instanceof InputStream is)) return file;
+		if (!(ip.getResource(file.value) instanceof FileChannel fc)) return file;
 		try {
-			is.readNBytes(data, ofs, len);
+			ByteBuffer buf = ByteBuffer.wrap(data, ofs, len);
+			while(buf.hasRemaining() && fc.read(buf) >= 0);
 			return file;
 		} catch(IOException e) {
-			try {
-				ip.removeResource(file.value).close();
-			} catch(IOException e1) {e1.printStackTrace();}
-			return new Value(FILE, NO_ELEM, e.getMessage().getBytes(UTF_8), -1);
+			return failed(ip, file, e);
 		}
 	}
 
 	@Impl(inputs = 4, useIp = true)
 	public static Value fileWrite(Interpreter ip, Value file, byte[] data, int ofs, int len) {
-		if (!(ip.getResource(file.value) instanceof OutputStream os)) return file;
+		if (!(ip.getResource(file.value) instanceof ChannelWriter w)) return file;
 		try {
-			os.write(data, ofs, len);
+			w.write(data, ofs, len);
 			return file;
 		} catch(IOException e) {
-			try {
-				ip.removeResource(file.value).close();
-			} catch(IOException e1) {e1.printStackTrace();}
-			return new Value(FILE, NO_ELEM, e.getMessage().getBytes(UTF_8), -1);
+			return failed(ip, file, e);
 		}
 	}
 
+	@Impl(inputs = 1, useIp = true)
+	public static Value fileFlush(Interpreter ip, Value file) {
+		if (!(ip.getResource(file.value) instanceof ChannelWriter w)) return file;
+		try {
+			w.flush();
+			return file;
+		} catch(IOException e) {
+			return failed(ip, file, e);
+		}
+	}
+
+	/**Close a file after an I/O error.
+	 * @return the error as file value */
+	private static Value failed(Interpreter ip, Value file, IOException e) {
+		try {
+			ip.removeResource(file.value).close();
+		} catch(IOException e1) {e1.printStackTrace();}
+		return new Value(FILE, NO_ELEM, e.toString().getBytes(UTF_8), -1);
+	}
+
 	@Impl(inputs = 1, useIp = true, outType = "INT")
 	public static long fileLen(Interpreter ip, long file) {
-		Closeable r = ip.getResource(file);
-		FileChannel fc;
-		if (r instanceof FileInputStream is) fc = is.getChannel();
-		else if (r instanceof FileOutputStream os) fc = os.getChannel();
-		else return 0;
 		try {
-			return fc.size() - fc.position();
+			Closeable r = ip.getResource(file);
+			if (r instanceof FileChannel fc) return fc.size() - fc.position();
+			if (r instanceof ChannelWriter w) return w.remaining();
+			if (r instanceof MappedFile mf) return mf.buffer().capacity();
+			if (r instanceof AsyncFile af) return af.remaining();
+			return 0;
 		} catch(IOException e) {
 			return 0;
 		}
 	}
 
+	//Asynchronous I/O:
+
+	@Impl(inputs = 2, useIp = true)
+	public static Value fileOpenAsync(Interpreter ip, int mode, byte[] path) {
+		try {
+			Path p = Path.of(new String(path, UTF_8));
+			AsyncFile f = switch(mode) {
+			case 0 -> new AsyncFile(p, false, READ);
+			case 1 -> new AsyncFile(p, false, WRITE, CREATE, TRUNCATE_EXISTING);
+			case 2 -> new AsyncFile(p, true, WRITE, CREATE);
+			default -> throw new IllegalArgumentException("invalid open mode");
+			};
+			return new Value(FILE, NO_ELEM, NO_DATA, ip.addResource(f));
+		} catch(IOException e) {
+			return new Value(FILE, NO_ELEM, e.toString().getBytes(UTF_8), -1);
+		}
+	}
+
+	/**@param ip
+	 * @param file opened with {@link #fileOpenAsync}
+	 * @param data must not be accessed until the read was awaited
+	 * @param ofs
+	 * @param len
+	 * @return handle of the pending read to {@link #await} or the file if it was not opened for asynchronous I/O */
+	@Impl(inputs = 4, useIp = true)
+	public static Value fileReadAsync(Interpreter ip, Value file, byte[] data, int ofs, int len) {
+		if (!(ip.getResource(file.value) instanceof AsyncFile f)) return file;
+		return new Value(FILE, NO_ELEM, NO_DATA, ip.addResource(f.read(data, ofs, len)));
+	}
+
+	/**@param ip
+	 * @param file opened with {@link #fileOpenAsync}
+	 * @param data must not be modified until the write was awaited
+	 * @param ofs
+	 * @param len
+	 * @return handle of the pending write to {@link #await} or the file if it was not opened for asynchronous I/O */
+	@Impl(inputs = 4, useIp = true)
+	public static Value fileWriteAsync(Interpreter ip, Value file, byte[] data, int ofs, int len) {
+		if (!(ip.getResource(file.value) instanceof AsyncFile f)) return file;
+		return new Value(FILE, NO_ELEM, NO_DATA, ip.addResource(f.write(data, ofs, len)));
+	}
+
+	/**Wait for a pending read or write to complete and release its handle.
+	 * @param ip
+	 * @param pending handle returned by {@link #fileReadAsync} or {@link #fileWriteAsync}
+	 * @return the number of bytes transferred as int, or the error as file value */
+	@Impl(inputs = 1, useIp = true)
+	public static Value await(Interpreter ip, Value pending) {
+		if (!(ip.getResource(pending.value) instanceof AsyncFile.Transfer t)) return pending;
+		try {
+			return Value.of(t.get(), INT);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("interrupted");
+		} catch(ExecutionException e) {
+			return new Value(FILE, NO_ELEM, e.getCause().toString().getBytes(UTF_8), -1);
+		} finally {
+			ip.removeResource(pending.value);
+		}
+	}
+
+	/**Wait for several pending reads or writes.
+	 * @param ip
+	 * @param pending its elements are the handles to {@link #await}
+	 * @return the results of {@link #await} for each handle as elements */
+	@Impl(inputs = 1, useIp = true)
+	public static Value awaitAll(Interpreter ip, Value pending) {
+		Value[] res = new Value[pending.elements.length];
+		ip.allocate(res.length * 2L, 0);
+		for (int i = 0; i < res.length; i++)
+			res[i] = await(ip, pending.elements[i]);
+		return new Value(VOID, res, NO_DATA, res.length);
+	}
+
+	//Record reading:
+
+	@Impl(inputs = 1, useIp = true)
+	public static Value readerOpen(Interpreter ip, byte[] path) {
+		try {
+			RecordReader r = new RecordReader(Path.of(new String(path, UTF_8)), Math.max(BUFFER_SIZE, 1 << 12));
+			return new Value(FILE, NO_ELEM, NO_DATA, ip.addResource(r));
+		} catch(IOException e) {
+			return new Value(FILE, NO_ELEM, e.toString().getBytes(UTF_8), -1);
+		}
+	}
+
+	/**@param ip
+	 * @param reader opened with {@link #readerOpen}
+	 * @param delim record separator
+	 * @return the next record as string, null at the end of the file or the error as file value */
+	@Impl(inputs = 2, useIp = true)
+	public static Value readRecord(Interpreter ip, Value reader, byte[] delim) {
+		if (!(ip.getResource(reader.value) instanceof RecordReader r)) return reader;
+		try {
+			byte[] rec = r.readRecord(delim);
+			if (rec == null) return NULL;
+			ip.allocate(0, rec.length);
+			return new Value(STRING, NO_ELEM, rec, 0);
+		} catch(IOException e) {
+			return failed(ip, reader, e);
+		}
+	}
+
+	//Memory mapped files:
+
+	@Impl(inputs = 1, useIp = true)
+	public static Value fileMap(Interpreter ip, byte[] path) {
+		try {
+			MappedFile mf = new MappedFile(Path.of(new String(path, UTF_8)));
+			return new Value(FILE, NO_ELEM, NO_DATA, ip.addResource(mf));
+		} catch(IOException e) {
+			return new Value(FILE, NO_ELEM, e.toString().getBytes(UTF_8), -1);
+		}
+	}
+
+	private static ByteBuffer mapped(Interpreter ip, long file) {
+		if (!(ip.getResource(file) instanceof MappedFile mf))
+			throw new IllegalArgumentException("not a mapped file");
+		return mf.buffer();
+	}
+
+	@Impl(inputs = 2, useIp = true, outType = "INT")
+	public static long mapRead1(Interpreter ip, long file, int idx) {
+		return (long)(mapped(ip, file).get(idx) & 0xff);
+	}
+
+	@Impl(inputs = 2, useIp = true, outType = "INT")
+	public static long mapRead2(Interpreter ip, long file, int idx) {
+		return (long)(mapped(ip, file).getShort(idx) & 0xffff);
+	}
+
+	@Impl(inputs = 2, useIp = true, outType = "INT")
+	public static long mapRead4(Interpreter ip, long file, int idx) {
+		return (long)mapped(ip, file).getInt(idx) & 0xffffffffL;
+	}
+
+	@Impl(inputs = 2, useIp = true, outType = "INT")
+	public static long mapRead8(Interpreter ip, long file, int idx) {
+		return mapped(ip, file).getLong(idx);
+	}
+
+	@Impl(inputs = 4, useIp = true, outType = "INT")
+	public static int mapFind(Interpreter ip, long file, int from, int to, byte[] val) {
+		ByteBuffer buf = mapped(ip, file);
+		int len = val.length; to -= len;
+		find: for (int i = from; i < to; i++) {
+			if ((i & 0xffff) == 0) ip.charge(1024);
+			for (int j = 0; j < len; j++)
+				if (buf.get(i+j) != val[j])
+					continue find;
+			return i;
+		}
+		return -1;
+	}
+
+	@Impl(inputs = 5, useIp = true)
+	public static void mapCopy(Interpreter ip, byte[] dst, int dstOfs, long file, int srcOfs, int len) {
+		mapped(ip, file).get(srcOfs, dst, dstOfs, len);
+	}
+
+	//Directories:
+
+	/**@param ip
+	 * @param path directory
+	 * @return the names of all entries in the directory as string elements, sorted by name */
+	@Impl(inputs = 1, useIp = true)
+	public static Value dirList(Interpreter ip, byte[] path) {
+		String[] names;
+		try (Stream<Path> s = Files.list(Path.of(new String(path, UTF_8)))) {
+			names = s.map(p -> p.getFileName().toString()).sorted().toArray(String[]::new);
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return strings(ip, names);
+	}
+
+	/**@param ip
+	 * @param path root directory
+	 * @param glob pattern the file paths relative to root must match, empty to match all
+	 * @return the relative paths of all regular files in the tree as string elements,
+	 * sorted by path with '/' as separator. Symbolic links are not followed. */
+	@Impl(inputs = 2, useIp = true)
+	public static Value dirWalk(Interpreter ip, byte[] path, byte[] glob) {
+		PathMatcher filter = glob.length == 0 ? null
+			: FileSystems.getDefault().getPathMatcher("glob:" + new String(glob, UTF_8));
+		DirectoryWalk walk = new DirectoryWalk(Path.of(new String(path, UTF_8)), filter);
+		List<String> files;
+		try {
+			files = ForkJoinPool.commonPool().submit(walk).get();
+		} catch(InterruptedException e) {
+			walk.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new CancellationException("interrupted");
+		} catch(ExecutionException e) {
+			throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+		}
+		ip.charge(files.size());
+		String[] names = files.toArray(String[]::new);
+		Arrays.sort(names);
+		return strings(ip, names);
+	}
+
+	private static Value strings(Interpreter ip, String[] names) {
+		Value[] elem = new Value[names.length];
+		long bytes = 0;
+		for (int i = 0; i < elem.length; i++)
+			bytes += (elem[i] = Value.of(names[i], STRING)).data.length;
+		ip.allocate(elem.length * 2L, bytes);
+		return new Value(VOID, elem, NO_DATA, elem.length);
+	}
+
+	/**@param ip
+	 * @param path file or directory, symbolic links are not followed
+	 * @return int elements {size in bytes, last modified time in ms since epoch,
+	 * type: 0 = missing, 1 = regular file, 2 = directory, 3 = other} */
+	@Impl(inputs = 1, useIp = true)
+	public static Value fileStat(Interpreter ip, byte[] path) {
+		long size = 0, time = 0, type;
+		try {
+			BasicFileAttributes attr = Files.readAttributes(
+				Path.of(new String(path, UTF_8)), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS
+			);
+			size = attr.size();
+			time = attr.lastModifiedTime().toMillis();
+			type = attr.isRegularFile() ? 1 : attr.isDirectory() ? 2 : 3;
+		} catch(NoSuchFileException e) {
+			type = 0;
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		ip.allocate(3, 0);
+		return new Value(VOID, new Value[] {
+			Value.of(size, INT), Value.of(time, INT), Value.of(type, INT)
+		}, NO_DATA, 3);
+	}
+
 	@Impl(inputs = 1, useIp = true, outType = "INT")
 	public static long fileClose(Interpreter ip, long file) {
 		Closeable c = ip.removeResource(file);
@@ -0,0 +1,44 @@
+package modules.dfc.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**A file memory-mapped read-only, so circuits can read it without copying it into data arrays first.
+ * @author cd4017be */
+public class MappedFile implements Closeable {
+
+	private volatile ByteBuffer buf;
+
+	/**@param path
+	 * @throws IOException if the file can't be opened or is larger than 2 GiB */
+	public MappedFile(Path path) throws IOException {
+		try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = fc.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("file too large to map: " + size);
+			//the mapping stays valid after the channel is closed
+			this.buf = fc.map(MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**@return the mapped file content (in little endian byte order)
+	 * @throws IllegalStateException if already closed */
+	public ByteBuffer buffer() {
+		ByteBuffer buf = this.buf;
+		if (buf == null) throw new IllegalStateException("file unmapped");
+		return buf;
+	}
+
+	/**Release the mapping. The memory is unmapped once the buffer is garbage collected,
+	 * because unmapping it explicitly would crash the JVM if another thread still reads from it. */
+	@Override
+	public void close() {
+		buf = null;
+	}
+
+}
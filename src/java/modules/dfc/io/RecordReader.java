@@ -0,0 +1,115 @@
+package modules.dfc.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**Splits a file into records separated by a delimiter.
+ * The next chunk of the file is always read in the background while the records of the current one are consumed.
+ * @author cd4017be */
+public class RecordReader implements Closeable {
+
+	private final AsynchronousFileChannel channel;
+	/** unconsumed data between position and limit */
+	private ByteBuffer buf;
+	/** target of the pending read */
+	private final ByteBuffer ahead;
+	private Future<Integer> pending;
+	private long filePos;
+	/** index in buf before which no delimiter starts */
+	private int scanned;
+	private boolean eof;
+
+	/**@param path
+	 * @param size chunk size in bytes
+	 * @throws IOException */
+	public RecordReader(Path path, int size) throws IOException {
+		this.channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+		this.buf = ByteBuffer.allocate(size).flip();
+		this.ahead = ByteBuffer.allocate(size);
+		readAhead();
+	}
+
+	private void readAhead() {
+		ahead.clear();
+		pending = channel.read(ahead, filePos);
+	}
+
+	/**Append the chunk read in the background and start reading the next one.
+	 * @return false if the end of the file was reached */
+	private boolean fill() throws IOException {
+		if (eof) return false;
+		int n;
+		try {
+			n = pending.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		}
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		filePos += n;
+		ahead.flip();
+		scanned -= buf.position();
+		buf.compact();
+		if (buf.remaining() < ahead.remaining()) {
+			ByteBuffer b = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + ahead.remaining()));
+			buf = b.put(buf.flip());
+		}
+		buf.put(ahead).flip();
+		readAhead();
+		return true;
+	}
+
+	/**@param delim the record separator, not included in the result
+	 * @return the next record or null at the end of the file
+	 * @throws IOException */
+	public byte[] readRecord(byte[] delim) throws IOException {
+		int d = delim.length;
+		if (d == 0) throw new IllegalArgumentException("empty delimiter");
+		for(;;) {
+			byte[] a = buf.array();
+			int p = buf.position(), l = buf.limit();
+			int i = find(a, Math.max(scanned, p), l, delim);
+			if (i >= 0) {
+				buf.position(scanned = i + d);
+				return Arrays.copyOfRange(a, p, i);
+			}
+			scanned = Math.max(p, l - d + 1);
+			if (fill()) continue;
+			if (p == l) return null;
+			buf.position(scanned = l);
+			return Arrays.copyOfRange(a, p, l);
+		}
+	}
+
+	private static int find(byte[] a, int from, int to, byte[] delim) {
+		byte first = delim[0];
+		to -= delim.length;
+		find: for (int i = from; i <= to; i++) {
+			if (a[i] != first) continue;
+			for (int j = 1; j < delim.length; j++)
+				if (a[i + j] != delim[j])
+					continue find;
+			return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -33,22 +33,22 @@ public class Intrinsics {
 		return Long.toUnsignedString(val).getBytes();
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long udiv(long a, long b) {
 		return Long.divideUnsigned(a, b);
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long umod(long a, long b) {
 		return Long.remainderUnsigned(a, b);
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long ushr(long a, long b) {
 		return a >>> b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static int ucomp(long a, long b) {
 		return Long.compareUnsigned(a, b);
 	}
@@ -65,42 +65,42 @@ public class Intrinsics {
 		return Double.toString(val).getBytes();
 	}
 
-	@Impl(inputs = 1, outType = "FLOAT")
+	@Impl(inputs = 1, outType = "FLOAT", pure = true)
 	public static double intToFloat(long val) {
 		return (double)val;
 	}
 
-	@Impl(inputs = 1, outType = "INT")
+	@Impl(inputs = 1, outType = "INT", pure = true)
 	public static long floatToInt(double val) {
 		return (long)val;
 	}
 
-	@Impl(inputs = 2, outType = "FLOAT")
+	@Impl(inputs = 2, outType = "FLOAT", pure = true)
 	public static double fadd(double a, double b) {
 		return a + b;
 	}
 
-	@Impl(inputs = 2, outType = "FLOAT")
+	@Impl(inputs = 2, outType = "FLOAT", pure = true)
 	public static double fsub(double a, double b) {
 		return a - b;
 	}
 
-	@Impl(inputs = 2, outType = "FLOAT")
+	@Impl(inputs = 2, outType = "FLOAT", pure = true)
 	public static double fmul(double a, double b) {
 		return a * b;
 	}
 
-	@Impl(inputs = 2, outType = "FLOAT")
+	@Impl(inputs = 2, outType = "FLOAT", pure = true)
 	public static double fdiv(double a, double b) {
 		return a / b;
 	}
 
-	@Impl(inputs = 2, outType = "FLOAT")
+	@Impl(inputs = 2, outType = "FLOAT", pure = true)
 	public static double fmod(double a, double b) {
 		return a % b;
 	}
 
-	@Impl(inputs = 2, outType = "INT")
+	@Impl(inputs = 2, outType = "INT", pure = true)
 	public static long fcomp(double a, double b) {
 		return a < b ? -1 : a > b ? 1 : 0;
 	}